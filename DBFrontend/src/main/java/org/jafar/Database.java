@@ -22,7 +22,13 @@ public class Database {
 
 
     public Database(String path) throws IOException, Constants.NotJafarDBFile {
-        db = DB.open("data/" + path + ".db", new Options());
+        Options options = new Options();
+        // Commits are sequential log appends, and concurrent inserts share one fsync of the log
+        options.setWriteAheadLog(true);
+        options.setDurability(Options.Durability.GROUP);
+        // Documents get increasing ids, the nodes they fill are left full
+        options.setRightEdgeSplit(true);
+        db = DB.open("data/" + path + ".db", options);
         objectMapper = new ObjectMapper();
     }
 
@@ -59,20 +65,26 @@ public class Database {
 
     public List<String> getAllCollections() throws IOException {
         Transaction transaction = db.readTransaction();
-        Collection rootCollection = transaction.getRootCollection();
-        transaction.commit();
-        List<Item> items = rootCollection.findAll();
-        return items.stream().map(item -> new String(item.key())).collect(Collectors.toList());
+        try {
+            List<Item> items = transaction.getRootCollection().findAll();
+            return items.stream().map(item -> new String(item.key())).collect(Collectors.toList());
+        } finally {
+            transaction.commit();
+        }
     }
 
     public boolean doesCollectionExist(String collectionName) {
         Transaction transaction = db.readTransaction();
         try {
-            Optional<Collection> collection = transaction.getCollection(collectionName.getBytes());
-            transaction.commit();
-            return collection.isPresent();
+            return transaction.getCollection(collectionName.getBytes()).isPresent();
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } finally {
+            try {
+                transaction.commit();
+            } catch (IOException e) {
+                // Ending a read transaction doesn't write anything
+            }
         }
     }
 
@@ -107,7 +119,8 @@ public class Database {
             if (!document.has(field)) return false;
         }
 
-        String key = UUID.randomUUID().toString();
+        // Ids from the collection's counter only grow, so new documents are added at the end of the tree
+        String key = Collection.formatId(collection.get().nextId());
         document.put("id", key);
         collection.get().put(key.getBytes(), document.toString().getBytes());
         transaction.commit();
@@ -121,35 +134,67 @@ public class Database {
             throw new IOException();
         }
 
-        collection.get().put(UUID.randomUUID().toString().getBytes(), document.toString().getBytes());
+        collection.get().put(Collection.formatId(collection.get().nextId()).getBytes(), document.toString().getBytes());
         transaction.commit();
     }
 
     public Optional<Item> getDocumentById(byte[] key, String collectionName) throws IOException {
         Transaction transaction = db.readTransaction();
-        Optional<Collection> collection = transaction.getCollection(collectionName.getBytes());
-        if (collection.isEmpty()) {
-            throw new IOException();
-        }
+        try {
+            Optional<Collection> collection = transaction.getCollection(collectionName.getBytes());
+            if (collection.isEmpty()) {
+                throw new IOException();
+            }
 
-        return collection.get().find(key);
+            return collection.get().find(key);
+        } finally {
+            transaction.commit();
+        }
     }
 
     public List<JsonNode> getAllDocuments(String collectionName) throws IOException {
         Transaction transaction = db.readTransaction();
-        Optional<Collection> collection = transaction.getCollection(collectionName.getBytes());
-        if (collection.isEmpty()) {
-            throw new IOException();
+        try {
+            Optional<Collection> collection = transaction.getCollection(collectionName.getBytes());
+            if (collection.isEmpty()) {
+                throw new IOException();
+            }
+
+            List<Item> items = collection.get().findAll();
+            return items.stream().map(item -> {
+                try {
+                    return objectMapper.readTree(item.value());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }).toList();
+        } finally {
+            transaction.commit();
         }
+    }
 
-        List<Item> items = collection.get().findAll();
-        return items.stream().map(item -> {
-            try {
-                return objectMapper.readTree(item.value());
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+    /**
+     * Returns the documents with ids from {@code from} up to, but not including, {@code to}, at most {@code limit} of
+     * them. Only the documents in the range are read, however large the collection is.
+     */
+    public List<JsonNode> getDocuments(String collectionName, String from, String to, int limit) throws IOException {
+        Transaction transaction = db.readTransaction();
+        try {
+            Optional<Collection> collection = transaction.getCollection(collectionName.getBytes());
+            if (collection.isEmpty()) {
+                throw new IOException();
             }
-        }).toList();
+
+            List<JsonNode> documents = new ArrayList<>();
+            Iterator<Item> items = collection.get().scan(from == null ? null : from.getBytes(),
+                    to == null ? null : to.getBytes(), limit);
+            while (items.hasNext()) {
+                documents.add(objectMapper.readTree(items.next().value()));
+            }
+            return documents;
+        } finally {
+            transaction.commit();
+        }
     }
 
     public void close() throws IOException {
@@ -180,7 +180,16 @@ class ClientHandler implements Runnable {
                         out.write(message.serialize());
                     }
                     case QUERY -> {
-                        List<JsonNode> items = database.getAllDocuments(objectNode.get("name").asText());
+                        // A query with a key range or a limit only reads the documents it returns
+                        List<JsonNode> items;
+                        if (objectNode.has("from") || objectNode.has("to") || objectNode.has("limit")) {
+                            items = database.getDocuments(objectNode.get("name").asText(),
+                                    objectNode.has("from") ? objectNode.get("from").asText() : null,
+                                    objectNode.has("to") ? objectNode.get("to").asText() : null,
+                                    objectNode.has("limit") ? objectNode.get("limit").asInt() : Integer.MAX_VALUE);
+                        } else {
+                            items = database.getAllDocuments(objectNode.get("name").asText());
+                        }
                         objectNode = objectMapper.createObjectNode();
                         ArrayNode arrayNode = objectMapper.valueToTree(items);
                         objectNode.set("response", arrayNode);
@@ -84,6 +84,24 @@ public class Driver {
         return objectNode.get("response");
     }
 
+    /**
+     * Returns the documents with ids from {@code from} up to, but not including, {@code to}, at most {@code limit} of
+     * them. A null id leaves that end of the range open.
+     */
+    public JsonNode getRange(String collectionName, String from, String to, int limit) throws IOException {
+        ObjectNode objectNode = objectMapper.createObjectNode();
+        objectNode.put("name", collectionName);
+        if (from != null) {
+            objectNode.put("from", from);
+        }
+        if (to != null) {
+            objectNode.put("to", to);
+        }
+        objectNode.put("limit", limit);
+        objectNode = sendToDb(objectNode, WireProtocol.OperationType.QUERY);
+        return objectNode.get("response");
+    }
+
     private ObjectNode sendToDb(ObjectNode obj, WireProtocol.OperationType operationType) throws IOException {
         byte[] jsonData = obj != null ? objectMapper.writeValueAsBytes(obj): new byte[0];
         WireProtocol.Message message = WireProtocol.createMessage(operationType, jsonData);
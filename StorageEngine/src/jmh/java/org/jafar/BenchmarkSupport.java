@@ -0,0 +1,59 @@
+package org.jafar;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Shared fixtures for the benchmarks: a throwaway database directory and a collection filled with predictable keys.
+ */
+public class BenchmarkSupport {
+    public static final byte[] COLLECTION_NAME = "bench".getBytes();
+    public static final int VALUE_SIZE = 100;
+
+    private final Path directory;
+
+    public BenchmarkSupport() throws IOException {
+        this.directory = Files.createTempDirectory("jafardb-bench");
+    }
+
+    public String newDatabasePath() {
+        return directory.resolve(System.nanoTime() + ".db").toString();
+    }
+
+    public static byte[] key(int i) {
+        return String.format("key-%010d", i).getBytes();
+    }
+
+    public static byte[] value(int i) {
+        byte[] value = new byte[VALUE_SIZE];
+        byte[] key = key(i);
+        for (int j = 0; j < value.length; j++) {
+            value[j] = key[j % key.length];
+        }
+        return value;
+    }
+
+    /**
+     * Creates the benchmark collection and fills it with keys 0..count-1 in a single write transaction.
+     *
+     * @return the collection, detached from the transaction that created it
+     */
+    public static Collection load(DB db, int count) throws Exception {
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(COLLECTION_NAME);
+        for (int i = 0; i < count; i++) {
+            collection.put(key(i), value(i));
+        }
+        transaction.commit();
+        return collection;
+    }
+
+    public void cleanup() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading sorted keys into a new collection in one write transaction, putting them one by one, putting them as one
+ * batch with {@link Collection#putAll}, and building the tree from the leaves up with {@link Collection#bulkLoad}.
+ * Every iteration loads into a new database file.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BulkLoadBenchmark {
+    @Param({"100000"})
+    public int keys;
+
+    BenchmarkSupport support;
+    List<Item> items;
+    DB db;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support = new BenchmarkSupport();
+        items = new ArrayList<>(keys);
+        for (int i = 0; i < keys; i++) {
+            items.add(new Item(BenchmarkSupport.key(i), BenchmarkSupport.value(i)));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void open() throws Exception {
+        db = DB.open(support.newDatabasePath(), new Options());
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() throws Exception {
+        db.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        support.cleanup();
+    }
+
+    @Benchmark
+    public void put() throws Exception {
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(BenchmarkSupport.COLLECTION_NAME);
+        for (Item item : items) {
+            collection.put(item.key(), item.value());
+        }
+        transaction.commit();
+    }
+
+    @Benchmark
+    public void putAll() throws Exception {
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(BenchmarkSupport.COLLECTION_NAME);
+        collection.putAll(items);
+        transaction.commit();
+    }
+
+    @Benchmark
+    public void bulkLoad() throws Exception {
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(BenchmarkSupport.COLLECTION_NAME);
+        collection.bulkLoad(items.iterator());
+        transaction.commit();
+    }
+}
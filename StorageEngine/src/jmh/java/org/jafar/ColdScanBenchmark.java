@@ -0,0 +1,66 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full scan of a collection that isn't cached, with and without reading ahead. The node cache is disabled, and
+ * before every scan the OS page cache is dropped when the benchmark is allowed to (it needs root on Linux), otherwise
+ * the pages come from the OS cache and only the system call and decoding overhead is overlapped.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ColdScanBenchmark {
+    private static final Path DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+
+    @Param({"0", "16"})
+    public int readAhead;
+
+    @Param({"100000"})
+    public int keys;
+
+    BenchmarkSupport support;
+    DB db;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support = new BenchmarkSupport();
+        Options options = new Options();
+        options.setNodeCacheSize(0);
+        options.setScanReadAhead(readAhead);
+        db = DB.open(support.newDatabasePath(), options);
+        BenchmarkSupport.load(db, keys);
+    }
+
+    @Setup(Level.Iteration)
+    public void dropCaches() throws IOException, InterruptedException {
+        if (Files.isWritable(DROP_CACHES)) {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Files.writeString(DROP_CACHES, "1");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        support.cleanup();
+    }
+
+    @Benchmark
+    public List<Item> scan() throws Exception {
+        Transaction transaction = db.readTransaction();
+        List<Item> items = transaction.getCollection(BenchmarkSupport.COLLECTION_NAME).get().findAll();
+        transaction.commit();
+        return items;
+    }
+}
@@ -0,0 +1,101 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full scan of a collection whose leaves are spread over the file, before and after compacting it. The collection
+ * is written in random order and in small transactions, next to another collection that's then emptied, so its
+ * leaves are out of key order and have free pages between them. The node cache is disabled and the OS page cache is
+ * dropped before every scan when the benchmark is allowed to, like {@link ColdScanBenchmark}. The setup prints what
+ * the compaction moved and reclaimed.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactionBenchmark {
+    private static final Path DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+    private static final byte[] FILLER_NAME = "filler".getBytes();
+
+    @Param({"false", "true"})
+    public boolean compacted;
+
+    @Param({"100000"})
+    public int keys;
+
+    BenchmarkSupport support;
+    DB db;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support = new BenchmarkSupport();
+        Options options = new Options();
+        options.setNodeCacheSize(0);
+        db = DB.open(support.newDatabasePath(), options);
+
+        List<Integer> order = new ArrayList<>(keys);
+        for (int i = 0; i < keys; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(42));
+        Transaction transaction = db.writeTransaction();
+        transaction.createCollection(BenchmarkSupport.COLLECTION_NAME);
+        transaction.createCollection(FILLER_NAME);
+        transaction.commit();
+        for (int from = 0; from < keys; from += 1000) {
+            transaction = db.writeTransaction();
+            Collection collection = transaction.getCollection(BenchmarkSupport.COLLECTION_NAME).get();
+            Collection filler = transaction.getCollection(FILLER_NAME).get();
+            for (int i = from; i < Math.min(from + 1000, keys); i++) {
+                collection.put(BenchmarkSupport.key(order.get(i)), BenchmarkSupport.value(order.get(i)));
+                filler.put(BenchmarkSupport.key(order.get(i)), BenchmarkSupport.value(order.get(i)));
+            }
+            transaction.commit();
+        }
+        transaction = db.writeTransaction();
+        Collection filler = transaction.getCollection(FILLER_NAME).get();
+        for (int i = 0; i < keys; i++) {
+            filler.remove(BenchmarkSupport.key(i));
+        }
+        transaction.commit();
+
+        if (compacted) {
+            System.out.printf("%n%s%n", db.compact());
+        }
+        System.out.printf("%n%d pages in the file%n", db.getDal().getFreelist().getMaxPage() + 1);
+    }
+
+    @Setup(Level.Iteration)
+    public void dropCaches() throws IOException, InterruptedException {
+        if (Files.isWritable(DROP_CACHES)) {
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+            Files.writeString(DROP_CACHES, "1");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        support.cleanup();
+    }
+
+    @Benchmark
+    public List<Item> scan() throws Exception {
+        Transaction transaction = db.readTransaction();
+        List<Item> items = transaction.getCollection(BenchmarkSupport.COLLECTION_NAME).get().findAll();
+        transaction.commit();
+        return items;
+    }
+}
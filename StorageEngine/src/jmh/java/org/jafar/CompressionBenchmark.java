@@ -0,0 +1,70 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full scan of a collection of JSON documents with and without leaf compression, with the node cache disabled so
+ * every leaf is read from its page and decompressed. The setup prints how many pages the collection takes, which is
+ * what compression saves in IO and cache space.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    @Param({"false", "true"})
+    public boolean compression;
+
+    @Param({"100000"})
+    public int keys;
+
+    BenchmarkSupport support;
+    DB db;
+
+    static byte[] document(int i) {
+        return String.format("{\"_id\": \"%010d\", \"name\": \"user %d\", \"email\": \"user%d@example.com\", " +
+                "\"active\": %b, \"roles\": [\"reader\", \"writer\"], \"address\": {\"city\": \"Tel Aviv\", " +
+                "\"zip\": \"%05d\"}}", i, i, i, i % 2 == 0, i % 100000).getBytes();
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support = new BenchmarkSupport();
+        Options options = new Options();
+        options.setNodeCacheSize(0);
+        options.setLeafCompression(compression);
+        db = DB.open(support.newDatabasePath(), options);
+
+        List<Item> items = new ArrayList<>(keys);
+        for (int i = 0; i < keys; i++) {
+            items.add(new Item(BenchmarkSupport.key(i), document(i)));
+        }
+        Transaction transaction = db.writeTransaction();
+        transaction.createCollection(BenchmarkSupport.COLLECTION_NAME).bulkLoad(items.iterator());
+        transaction.commit();
+
+        Freelist freelist = db.getDal().getFreelist();
+        System.out.printf("%n%d pages in use with compression=%b%n",
+                freelist.getMaxPage() - freelist.getReleasedPageCount(), compression);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        support.cleanup();
+    }
+
+    @Benchmark
+    public List<Item> scan() throws Exception {
+        Transaction transaction = db.readTransaction();
+        List<Item> items = transaction.getCollection(BenchmarkSupport.COLLECTION_NAME).get().findAll();
+        transaction.commit();
+        return items;
+    }
+}
@@ -0,0 +1,93 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups from a growing number of reader threads. With the node cache disabled every lookup reads its pages
+ * through the DAL, which shows how well positional reads scale once there is no shared file cursor left. With the cache
+ * large enough for the whole tree every lookup is served by it, which shows how well the cache itself scales.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConcurrentReadBenchmark {
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"FILE_CHANNEL", "MEMORY_MAPPED"})
+        public Options.IOMode ioMode;
+
+        @Param({"20000"})
+        public int keys;
+
+        @Param({"0", "4096"})
+        public int nodeCacheSize;
+
+        BenchmarkSupport support;
+        DB db;
+        long root;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            support = new BenchmarkSupport();
+            Options options = new Options();
+            options.setIOMode(ioMode);
+            options.setNodeCacheSize(nodeCacheSize);
+            db = DB.open(support.newDatabasePath(), options);
+            root = BenchmarkSupport.load(db, keys).getRoot();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            db.close();
+            support.cleanup();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        Collection collection;
+
+        @Setup(Level.Trial)
+        public void setup(Database database) {
+            collection = new Collection(BenchmarkSupport.COLLECTION_NAME, database.root);
+        }
+    }
+
+    private Optional<Item> find(Database database, Reader reader) throws Exception {
+        Transaction transaction = database.db.readTransaction();
+        reader.collection.setTransaction(transaction);
+        Optional<Item> item = reader.collection.find(BenchmarkSupport.key(ThreadLocalRandom.current().nextInt(database.keys)));
+        transaction.commit();
+        return item;
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Optional<Item> find1Thread(Database database, Reader reader) throws Exception {
+        return find(database, reader);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Optional<Item> find2Threads(Database database, Reader reader) throws Exception {
+        return find(database, reader);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Optional<Item> find4Threads(Database database, Reader reader) throws Exception {
+        return find(database, reader);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Optional<Item> find8Threads(Database database, Reader reader) throws Exception {
+        return find(database, reader);
+    }
+}
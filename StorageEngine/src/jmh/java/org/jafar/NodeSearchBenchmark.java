@@ -0,0 +1,77 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Searching a single node with small keys, at fan-outs from what a 4 KB page holds up to what a 32 KB one does. The
+ * linear scan is what the search used to be, kept here as the baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NodeSearchBenchmark {
+    @Param({"16", "64", "256", "1024"})
+    public int fanOut;
+
+    Node node;
+    NodeView view;
+    byte[][] keys;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        List<Item> items = new ArrayList<>();
+        keys = new byte[fanOut * 2][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = BenchmarkSupport.key(i);
+            // Every other key is in the node, so half of the searches miss
+            if (i % 2 == 0) {
+                items.add(new Item(keys[i], Arrays.copyOf(keys[i], 8)));
+            }
+        }
+        node = new Node(items, new ArrayList<>());
+
+        ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        node.serialize(buf);
+        view = new NodeView().wrap(new Page(buf));
+    }
+
+    private byte[] nextKey() {
+        return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+    }
+
+    @Benchmark
+    public int linearScan() {
+        byte[] key = nextKey();
+        List<Item> items = node.getItems();
+        for (int i = 0; i < items.size(); i++) {
+            int res = Arrays.compareUnsigned(items.get(i).key(), key);
+            if (res == 0) {
+                return i;
+            }
+            if (res > 0) {
+                return -(i + 1);
+            }
+        }
+        return -(items.size() + 1);
+    }
+
+    @Benchmark
+    public int findKeyInNode() {
+        return node.findKeyInNode(nextKey());
+    }
+
+    @Benchmark
+    public int searchInPage() {
+        return view.search(nextKey());
+    }
+}
@@ -0,0 +1,75 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the page read/write path of the DAL with and without the off-heap page arena. The node cache is disabled
+ * so every getNode goes to the file. Run it with the GC profiler to see the allocation rate per operation:
+ * ./gradlew :StorageEngine:jmh -PjmhArgs='PageArenaBenchmark -prof gc'
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageArenaBenchmark {
+    // 0 turns every acquire into a heap allocation, which is how the DAL used to work
+    @Param({"0", "64"})
+    public int pageArenaSize;
+
+    private static final int PAGES = 256;
+
+    private BenchmarkSupport support;
+    private DB db;
+    private DAL dal;
+    private List<Node> nodes;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support = new BenchmarkSupport();
+        Options options = new Options();
+        options.setNodeCacheSize(0);
+        options.setPageArenaSize(pageArenaSize);
+        db = DB.open(support.newDatabasePath(), options);
+        dal = db.getDal();
+
+        nodes = new ArrayList<>();
+        for (int i = 0; i < PAGES; i++) {
+            List<Item> items = new ArrayList<>();
+            for (int j = 0; j < 64; j++) {
+                items.add(new Item(BenchmarkSupport.key(i * 64 + j), BenchmarkSupport.value(j)));
+            }
+            nodes.add(dal.writeNode(new Node(items, new ArrayList<>())));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        support.cleanup();
+    }
+
+    @Benchmark
+    public long readPage() throws Exception {
+        long pageNum = nodes.get(ThreadLocalRandom.current().nextInt(PAGES)).getPageNum();
+        try (Page page = dal.readPage(pageNum)) {
+            return page.getData().getLong(0);
+        }
+    }
+
+    @Benchmark
+    public Node writeNode() throws Exception {
+        return dal.writeNode(nodes.get(ThreadLocalRandom.current().nextInt(PAGES)));
+    }
+
+    @Benchmark
+    public Node getNode() throws Exception {
+        return dal.getNode(nodes.get(ThreadLocalRandom.current().nextInt(PAGES)).getPageNum());
+    }
+}
@@ -0,0 +1,63 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the FileChannel and the memory mapped DAL backends on warm point lookups and full scans.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageIOBenchmark {
+    @Param({"FILE_CHANNEL", "MEMORY_MAPPED"})
+    public Options.IOMode ioMode;
+
+    @Param({"20000"})
+    public int keys;
+
+    private BenchmarkSupport support;
+    private DB db;
+    private Collection collection;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        support = new BenchmarkSupport();
+        Options options = new Options();
+        options.setIOMode(ioMode);
+        db = DB.open(support.newDatabasePath(), options);
+        collection = BenchmarkSupport.load(db, keys);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        db.close();
+        support.cleanup();
+    }
+
+    @Benchmark
+    public Optional<Item> find() throws Exception {
+        Transaction transaction = db.readTransaction();
+        collection.setTransaction(transaction);
+        Optional<Item> item = collection.find(BenchmarkSupport.key(ThreadLocalRandom.current().nextInt(keys)));
+        transaction.commit();
+        return item;
+    }
+
+    @Benchmark
+    public void findAll(Blackhole blackhole) throws Exception {
+        Transaction transaction = db.readTransaction();
+        collection.setTransaction(transaction);
+        List<Item> items = collection.findAll();
+        transaction.commit();
+        blackhole.consume(items);
+    }
+}
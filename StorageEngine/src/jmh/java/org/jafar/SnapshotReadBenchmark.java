@@ -0,0 +1,76 @@
+package org.jafar;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read throughput with and without a writer committing single puts as fast as it can. Readers work on snapshots and
+ * take no lock, so the read throughput of readWhileWriting should stay close to readOnly, apart from the CPU the writer
+ * takes for itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotReadBenchmark {
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"20000"})
+        public int keys;
+
+        BenchmarkSupport support;
+        DB db;
+        Collection collection;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            support = new BenchmarkSupport();
+            db = DB.open(support.newDatabasePath(), new Options());
+            collection = BenchmarkSupport.load(db, keys);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            db.close();
+            support.cleanup();
+        }
+    }
+
+    private Optional<Item> find(Database database) throws Exception {
+        Transaction transaction = database.db.readTransaction();
+        Collection collection = transaction.getCollection(BenchmarkSupport.COLLECTION_NAME).get();
+        Optional<Item> item = collection.find(BenchmarkSupport.key(ThreadLocalRandom.current().nextInt(database.keys)));
+        transaction.commit();
+        return item;
+    }
+
+    @Benchmark
+    @Group("readOnly")
+    @GroupThreads(3)
+    public Optional<Item> readOnly(Database database) throws Exception {
+        return find(database);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public Optional<Item> read(Database database) throws Exception {
+        return find(database);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public void write(Database database) throws Exception {
+        int i = ThreadLocalRandom.current().nextInt(database.keys);
+        Transaction transaction = database.db.writeTransaction();
+        // The collection is only ever used by this thread, commit keeps its root up to date
+        database.collection.setTransaction(transaction);
+        database.collection.put(BenchmarkSupport.key(i), BenchmarkSupport.value(i + 1));
+        transaction.commit();
+    }
+}
@@ -0,0 +1,199 @@
+package org.jafar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Builds a collection's tree from items in key order, from the leaves up, instead of inserting them one by one.
+ * Every level of the tree has one node items are appended to, its rightmost one. A leaf is filled to a fraction of the
+ * max fill percent, then the item that doesn't fit goes up to its parent as the separator between it and a new leaf,
+ * and a full parent is closed the same way. The items are only ever appended, so loading into a collection that
+ * already has items starts from the rightmost path of its tree, and the first item has to come after its last one.
+ * The nodes are on new pages taken one after the other, and closed nodes are written out in batches, so the
+ * transaction doesn't keep the whole tree. Nothing points at their pages until the transaction commits.
+ * The last node of every level is left with what came after the last separator, which can be too little, so it's
+ * balanced with the node before it at the end, the same way a removal does.
+ */
+class BulkLoader {
+    // Number of closed nodes written out together
+    private static final int WriteBatchSize = 32;
+
+    private final Collection collection;
+    private final Transaction transaction;
+    private final DAL dal;
+    private final float fillFactor;
+    // The rightmost node of every level, leaves first
+    private final List<Node> open = new ArrayList<>();
+    // The node closed last on every level. It's only written out once the next one is closed, as the balancing at the
+    // end is going to move items out of it.
+    private final List<Node> lastClosed = new ArrayList<>();
+    private final List<Node> toWrite = new ArrayList<>();
+    private byte[] lastKey;
+
+    BulkLoader(Collection collection, float fillFactor) {
+        this.collection = collection;
+        this.transaction = collection.getTransaction();
+        this.dal = transaction.getDb().getDal();
+        this.fillFactor = fillFactor;
+    }
+
+    void load(Iterator<Item> items) throws IOException {
+        openRightPath();
+
+        while (items.hasNext()) {
+            Item item = items.next();
+            byte[] key = item.key();
+            if (key.length > Collection.MaxKeySize) {
+                throw new IllegalArgumentException("keys can't be longer than " + Collection.MaxKeySize + " bytes");
+            }
+            if (lastKey != null && Arrays.compareUnsigned(lastKey, key) >= 0) {
+                throw new IllegalArgumentException("keys have to be loaded in ascending order, after the last key of " +
+                        "the collection");
+            }
+            lastKey = key;
+            add(transaction.newItem(key, item.value()));
+        }
+
+        transaction.writeNewNodes(toWrite);
+        toWrite.clear();
+        balanceRightPath();
+    }
+
+    /**
+     * Opens the rightmost node of every level of the tree for appending.
+     */
+    private void openRightPath() throws IOException {
+        Node node;
+        if (collection.getRoot() == 0) {
+            node = transaction.writeNode(transaction.newNode(new ArrayList<>(), new ArrayList<>()));
+            collection.setRoot(node.getPageNum());
+        } else {
+            node = transaction.writeNode(transaction.getNode(collection.getRoot()));
+        }
+
+        List<Node> path = new ArrayList<>();
+        path.add(node);
+        while (!node.isLeaf()) {
+            node = node.writeNode(node.getNode(lastChild(node)));
+            path.add(node);
+        }
+        for (int i = path.size() - 1; i >= 0; i--) {
+            open.add(path.get(i));
+            lastClosed.add(null);
+        }
+
+        Node leaf = open.get(0);
+        if (!leaf.getItems().isEmpty()) {
+            lastKey = leaf.getItems().get(leaf.getItems().size() - 1).key();
+        }
+    }
+
+    private void add(Item item) throws IOException {
+        Node leaf = open.get(0);
+        if (fits(leaf, item)) {
+            leaf.getItems().add(item);
+            return;
+        }
+
+        Node next = transaction.writeNode(transaction.newNode(new ArrayList<>(), new ArrayList<>()));
+        addSeparator(1, item, next);
+        close(0, next);
+    }
+
+    /**
+     * Adds the item to the open node of the level, with the new node after it as its right child. A full node is
+     * closed and the item goes up another level instead.
+     */
+    private void addSeparator(int level, Item item, Node child) throws IOException {
+        if (level == open.size()) {
+            // The root is full, the tree grows a level
+            List<Long> childNodes = new ArrayList<>();
+            childNodes.add(open.get(level - 1).getPageNum());
+            Node root = transaction.writeNode(transaction.newNode(new ArrayList<>(), childNodes));
+            open.add(root);
+            lastClosed.add(null);
+            collection.setRoot(root.getPageNum());
+        }
+
+        Node parent = open.get(level);
+        if (fits(parent, item)) {
+            parent.getItems().add(item);
+            parent.getChildNodes().add(child.getPageNum());
+            return;
+        }
+
+        List<Long> childNodes = new ArrayList<>();
+        childNodes.add(child.getPageNum());
+        Node next = transaction.writeNode(transaction.newNode(new ArrayList<>(), childNodes));
+        addSeparator(level + 1, item, next);
+        close(level, next);
+    }
+
+    private void close(int level, Node next) throws IOException {
+        Node closed = open.set(level, next);
+        Node previous = lastClosed.set(level, closed);
+        if (previous != null && transaction.isNewPage(previous.getPageNum())) {
+            toWrite.add(previous);
+            if (toWrite.size() == WriteBatchSize) {
+                transaction.writeNewNodes(toWrite);
+                toWrite.clear();
+            }
+        }
+    }
+
+    private boolean fits(Node node, Item item) {
+        // A node takes at least one item, whatever its size
+        if (node.getItems().isEmpty()) {
+            return true;
+        }
+        node.getItems().add(item);
+        boolean fits = !dal.isOverPopulated(node, fillFactor);
+        node.getItems().remove(node.getItems().size() - 1);
+        return fits;
+    }
+
+    /**
+     * Balances the rightmost node of every level with the node before it, from the root down, so a node only just
+     * given a node before it by the balancing of its parent is balanced too. A node is given items from the node before
+     * it until it's no longer under populated, or merged into it when that one can't spare any. A merge leaves the
+     * parent with one item less, so the path is balanced again from the root. A merged node that's split again is left
+     * the way the split leaves it, a split can leave a node under populated with any fill percents.
+     */
+    private void balanceRightPath() throws IOException {
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+
+            // A merge can leave the root with a single child and no items, the same as a removal can
+            Node parent = transaction.getNode(collection.getRoot());
+            while (parent.getItems().isEmpty() && !parent.getChildNodes().isEmpty()) {
+                transaction.deleteNode(parent);
+                collection.setRoot(parent.getChildNodes().get(0));
+                parent = transaction.getNode(collection.getRoot());
+            }
+
+            while (!parent.isLeaf() && !merged) {
+                Node node = parent.getNode(lastChild(parent));
+                while (parent.getChildNodes().size() > 1 && node.isUnderPopulated()) {
+                    int children = parent.getChildNodes().size();
+                    parent.rebalanceRemove(node, children - 1);
+                    if (parent.getChildNodes().size() < children) {
+                        merged = true;
+                        break;
+                    }
+                    if (parent.getChildNodes().size() > children || lastChild(parent) != node.getPageNum()) {
+                        break;
+                    }
+                }
+                parent = parent.getNode(lastChild(parent));
+            }
+        }
+    }
+
+    private static long lastChild(Node node) {
+        return node.getChildNodes().get(node.getChildNodes().size() - 1);
+    }
+}
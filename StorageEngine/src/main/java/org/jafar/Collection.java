@@ -1,11 +1,15 @@
 package org.jafar;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.*;
 
 public class Collection {
+    // Nodes store the length of a key in a byte
+    public static final int MaxKeySize = 255;
+
     private byte[] name;
     private long root;
     private long counter;
@@ -28,20 +32,104 @@ public class Collection {
     public void setName(byte[] name) { this.name = name; }
     public void setCounter(long counter) { this.counter = counter; }
 
-    public Optional<Item> find(byte[] key) throws IOException {
-        Node node = transaction.getNode(root);
-        var result = node.findKey(key, true);
+    /**
+     * Returns the next number of the collection's counter, which is saved with the collection when the transaction
+     * commits. Keys made from it in order, such as {@link #formatId(long)} makes, are added at the end of the tree.
+     */
+    public long nextId() throws Constants.WriteInsideReadTransactionException {
+        if (!transaction.getWrite()) {
+            throw new Constants.WriteInsideReadTransactionException();
+        }
+        transaction.collectionChanged(this);
+        return ++counter;
+    }
+
+    /**
+     * Formats an id so the ids sort the same way as keys as they do as numbers.
+     */
+    public static String formatId(long id) {
+        return String.format("%019d", id);
+    }
 
-        if (result.getIndex() == -1) {
-            return Optional.empty();
+    public Optional<Item> find(byte[] key) throws IOException {
+        try (NodeView view = new NodeView()) {
+            long pageNum = root;
+            while (true) {
+                transaction.viewNode(pageNum, view);
+                int index = view.search(key);
+                if (index >= 0) {
+                    return Optional.of(transaction.readValue(view.item(index)));
+                }
+                if (view.isLeaf()) {
+                    return Optional.empty();
+                }
+                pageNum = view.childNode(-index - 1);
+            }
         }
-        return Optional.of(result.getNode().getItems().get(result.getIndex()));
+    }
+
+    /**
+     * Returns a cursor over the items of the collection in key order, it isn't positioned until it's first moved.
+     */
+    public Cursor cursor() {
+        return new Cursor(this);
+    }
+
+    /**
+     * Returns the items with keys from the low key up to, but not including, the high key, in key order. A null key
+     * leaves that end of the range open. The items are read as the iterator gets to them, and it stops at the first
+     * key past the range or once it returned the limit, without reading any further.
+     * The iterator throws {@link UncheckedIOException} if reading the next item fails.
+     */
+    public Iterator<Item> scan(byte[] lowKey, byte[] highKey, int limit) throws IOException {
+        Cursor cursor = cursor();
+        Optional<Item> first = lowKey == null ? cursor.first() : cursor.seek(lowKey);
+
+        return new Iterator<>() {
+            private Optional<Item> next = first;
+            private int returned = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next.isPresent() && returned < limit &&
+                        (highKey == null || Arrays.compareUnsigned(next.get().key(), highKey) < 0);
+            }
+
+            @Override
+            public Item next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Item item = next.get();
+                returned++;
+                if (returned < limit) {
+                    try {
+                        next = cursor.next();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return item;
+            }
+        };
     }
 
     public List<Item> findAll() throws IOException {
-        Node rootNode = transaction.getNode(root);
         List<Item> items = new LinkedList<>();
-        rootNode.findAll(items);
+        int readAhead = transaction.getDb().getDal().getScanReadAhead();
+        if (!transaction.getWrite() && readAhead > 0) {
+            new TreeScan(transaction, readAhead).findAll(root, items);
+        } else {
+            Node rootNode = transaction.getNode(root);
+            rootNode.findAll(items);
+        }
+
+        for (ListIterator<Item> it = items.listIterator(); it.hasNext(); ) {
+            Item item = it.next();
+            if (item.isOverflow()) {
+                it.set(transaction.readValue(item));
+            }
+        }
         return items;
     }
 
@@ -49,7 +137,11 @@ public class Collection {
         if (!transaction.getWrite()) {
             throw new Constants.WriteInsideReadTransactionException();
         }
-        Item item = new Item(key, value);
+        if (key.length > MaxKeySize) {
+            throw new IllegalArgumentException("keys can't be longer than " + MaxKeySize + " bytes");
+        }
+        transaction.collectionChanged(this);
+        Item item = transaction.newItem(key, value);
 
         // On first insertion, the root node does not exist, so it should be created
         Node root;
@@ -70,26 +162,37 @@ public class Collection {
         Node nodeToInsertIn = findResult.getNode();
         List<Integer> ancestorsIndexes = findResult.getAncestorIndexes();
 
+        boolean appended = false;
         // If key already exists
         if (nodeToInsertIn.getItems() != null && insertionIndex < nodeToInsertIn.getItems().size() &&
                 Arrays.equals(nodeToInsertIn.getItems().get(insertionIndex).key(), key)) {
             // Hmm Test this
-            nodeToInsertIn.getItems().set(insertionIndex, item);
+            Item replaced = nodeToInsertIn.getItems().set(insertionIndex, item);
+            transaction.deleteValue(replaced);
         } else {
             // Add item to the leaf node
             nodeToInsertIn.addItem(item, insertionIndex);
+            appended = nodeToInsertIn.isLeaf() && insertionIndex == nodeToInsertIn.getItems().size() - 1;
         }
         nodeToInsertIn.writeNode(nodeToInsertIn);
 
         List<Node> ancestors = getNodes(ancestorsIndexes);
 
+        // A key after all of the others is added at the end of the rightmost leaf, and keys that keep increasing keep
+        // being added there. The nodes on that path are split so the ones left behind stay full. Replacing the last key
+        // doesn't count, only adding one does.
+        boolean rightEdge = transaction.getDb().getDal().isRightEdgeSplit() && appended;
+        for (int i = 1; i < ancestors.size() && rightEdge; i++) {
+            rightEdge = ancestorsIndexes.get(i) == ancestors.get(i - 1).getItems().size();
+        }
+
         // Rebalance the nodes all the way up. Start From one node before the last and go all the way up. Exclude root.
         for (int i = ancestors.size() - 2; i >= 0; i--) {
             Node parentNode = ancestors.get(i);
             Node node = ancestors.get(i + 1);
             int nodeIndex = ancestorsIndexes.get(i + 1);
             if (node.isOverPopulated()) {
-                parentNode.split(node, nodeIndex);
+                parentNode.split(node, nodeIndex, rightEdge);
             }
         }
 
@@ -100,7 +203,7 @@ public class Collection {
             List<Long> list = new ArrayList<>();
             list.add(rootNode.getPageNum());
             Node newRoot = transaction.newNode(new ArrayList<>(), list);
-            newRoot.split(rootNode, 0);
+            newRoot.split(rootNode, 0, rightEdge);
 
             // Commit newly created root
             newRoot = transaction.writeNode(newRoot);
@@ -108,6 +211,117 @@ public class Collection {
         }
     }
 
+    /**
+     * Puts all of the items, the same as putting them one by one, with the last one winning if a key is there more
+     * than once. The items are sorted by key, and all of the ones that go into the same leaf are put with a single
+     * descent from the root. The nodes are only split once all of the items are in, from the deepest ones up, so
+     * every node that grew is split just once, into as many nodes as it needs with {@link Node#splitAll(Node, int)}.
+     */
+    public void putAll(List<Item> items) throws IOException, Constants.WriteInsideReadTransactionException {
+        if (!transaction.getWrite()) {
+            throw new Constants.WriteInsideReadTransactionException();
+        }
+        for (Item item : items) {
+            if (item.key().length > MaxKeySize) {
+                throw new IllegalArgumentException("keys can't be longer than " + MaxKeySize + " bytes");
+            }
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+        transaction.collectionChanged(this);
+
+        // A stable sort keeps the items with the same key in the order they were given
+        List<Item> sorted = new ArrayList<>(items);
+        sorted.sort((a, b) -> Arrays.compareUnsigned(a.key(), b.key()));
+
+        if (this.root == 0) {
+            this.root = transaction.writeNode(transaction.newNode(new ArrayList<>(), new ArrayList<>())).getPageNum();
+        }
+
+        // The parent and depth of every node that was changed, to split them from the bottom up
+        Map<Long, Long> parents = new HashMap<>();
+        TreeMap<Integer, Set<Long>> changedByDepth = new TreeMap<>(Comparator.reverseOrder());
+
+        int i = 0;
+        while (i < sorted.size()) {
+            Node node = transaction.getNode(this.root);
+            int depth = 0;
+            // The separator after the child the descent goes through, every key before it goes into the same leaf
+            byte[] upperBound = null;
+            while (true) {
+                changedByDepth.computeIfAbsent(depth, d -> new HashSet<>()).add(node.getPageNum());
+                int index = node.findKeyInNode(sorted.get(i).key());
+                if (index >= 0 || node.isLeaf()) {
+                    break;
+                }
+                int childIndex = -index - 1;
+                if (childIndex < node.getItems().size()) {
+                    upperBound = node.getItems().get(childIndex).key();
+                }
+                Node child = node.getNode(node.getChildNodes().get(childIndex));
+                parents.put(child.getPageNum(), node.getPageNum());
+                node = child;
+                depth++;
+            }
+
+            do {
+                Item item = sorted.get(i++);
+                // Only the last of the items with the same key is put
+                if (i < sorted.size() && Arrays.equals(item.key(), sorted.get(i).key())) {
+                    continue;
+                }
+                int index = node.findKeyInNode(item.key());
+                Item newItem = transaction.newItem(item.key(), item.value());
+                if (index >= 0) {
+                    transaction.deleteValue(node.getItems().set(index, newItem));
+                } else {
+                    node.addItem(newItem, -index - 1);
+                }
+                // An item that was found in an inner node ends the run, the next one has its own leaf
+            } while (node.isLeaf() && i < sorted.size() &&
+                    (upperBound == null || Arrays.compareUnsigned(sorted.get(i).key(), upperBound) < 0));
+            node.writeNode(node);
+        }
+
+        for (Map.Entry<Integer, Set<Long>> entry : changedByDepth.entrySet()) {
+            for (long pageNum : entry.getValue()) {
+                Node node = transaction.getNode(pageNum);
+                if (entry.getKey() > 0 && node.isOverPopulated()) {
+                    Node parent = transaction.getNode(parents.get(pageNum));
+                    parent.splitAll(node, parent.getChildNodes().indexOf(pageNum));
+                }
+            }
+        }
+
+        // The root can need more than one new level to hold all of the nodes its splits make
+        Node rootNode = transaction.getNode(this.root);
+        while (rootNode.isOverPopulated()) {
+            List<Long> list = new ArrayList<>();
+            list.add(rootNode.getPageNum());
+            Node newRoot = transaction.writeNode(transaction.newNode(new ArrayList<>(), list));
+            newRoot.splitAll(rootNode, 0);
+            this.root = newRoot.getPageNum();
+            rootNode = newRoot;
+        }
+    }
+
+    /**
+     * Loads items that are sorted by key into the collection, building its tree from the leaves up, which is much
+     * cheaper than putting them one by one. The nodes are filled to {@link Options#getBulkLoadFillFactor()} of the
+     * max fill percent. The collection can already have items, as long as all of the loaded keys come after them.
+     *
+     * @throws IllegalArgumentException if the keys aren't in ascending order or aren't all after the keys already in
+     * the collection. The items loaded before the one that isn't are kept, the transaction should be rolled back.
+     */
+    public void bulkLoad(Iterator<Item> items) throws IOException, Constants.WriteInsideReadTransactionException {
+        if (!transaction.getWrite()) {
+            throw new Constants.WriteInsideReadTransactionException();
+        }
+        transaction.collectionChanged(this);
+        new BulkLoader(this, transaction.getDb().getDal().getBulkLoadFillFactor()).load(items);
+    }
+
     public List<Node> getNodes(List<Integer> indexes) throws IOException {
         Node root = transaction.getNode(this.root);
 
@@ -116,7 +330,7 @@ public class Collection {
 
         Node child = root;
         for (int i = 1; i < indexes.size(); i++) {
-            child = transaction.getNode(child.getChildNodes().get(indexes.get(i)));
+            child = child.getNode(child.getChildNodes().get(indexes.get(i)));
             if (child == null) {
                 return null;  // Or you could throw an exception
             }
@@ -140,6 +354,8 @@ public class Collection {
         if (removeItemIndex == -1) {
             return false;
         }
+        transaction.collectionChanged(this);
+        transaction.deleteValue(nodeToRemoveFrom.getItems().get(removeItemIndex));
 
         if (nodeToRemoveFrom.isLeaf()) {
             nodeToRemoveFrom.removeItemFromLeaf(removeItemIndex);
@@ -162,7 +378,9 @@ public class Collection {
         rootNode = ancestors.get(0);
         // If the root has no items after rebalancing and has child nodes, adjust root.
         if (rootNode.getItems().isEmpty() && !rootNode.getChildNodes().isEmpty()) {
-            this.root = ancestors.get(1).getPageNum();
+            // The child on the path may be the one that was merged away, the one left is always first
+            transaction.deleteNode(rootNode);
+            this.root = rootNode.getChildNodes().get(0);
         }
 
         return true;
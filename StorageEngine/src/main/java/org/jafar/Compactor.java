@@ -0,0 +1,344 @@
+package org.jafar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Moves the pages in use at the end of the file to free pages nearer its start, so the file can be shrunk, while
+ * other transactions go on. Pages are moved by small write transactions that take the write lock one after the other,
+ * so a writer never waits for more than one of them. The batch of a transaction counts the pages it reads as well as
+ * the ones it moves, so one takes about as long where there's nothing to move, and one that moved nothing is rolled
+ * back rather than committed.
+ * The file can take as many pages as are in use, the limit, and every page past it is in the way. The trees are walked
+ * in key order, the tree of the root collection and the reclaim queue first and then every collection in name order,
+ * and every node on a page past the limit is copied to the lowest free page and its parent pointed at the copy. The
+ * free pages are taken lowest first, so the nodes that are moved end up in key order, and a scan reads them in the
+ * order of the file. The same goes for the overflow pages of values, and for the pages of the freelist. The walk is
+ * resumed after the last leaf the previous transaction got to, and the file is shrunk once it's done, after the
+ * write-ahead log is checkpointed, so none of the pages it moved off the end are written there again.
+ * Pages that readers of older versions may still be reading can't be taken until they're done, so those can keep the
+ * file from shrinking as far as it could.
+ */
+public class Compactor {
+    public static final int DefaultBatchPages = 64;
+    // The walk is done again while it moves pages, or while there are pending pages it may be able to take once
+    // they're released
+    private static final int MaxPasses = 3;
+    // The trees in the order they're walked, the collections come last
+    private static final int RootCollectionTree = 0;
+    private static final int ReclaimQueueTree = 1;
+    private static final int CollectionTrees = 2;
+
+    private final DB db;
+    private final DAL dal;
+    private final int batchPages;
+    private long movedPages;
+    private int transactions;
+
+    // Where the walk goes on from: the tree, the collection and the last key it got to
+    private int tree;
+    private byte[] collectionName;
+    private byte[] resumeKey;
+    private boolean done;
+
+    // Set for every transaction
+    private Transaction transaction;
+    private long limit;
+    private int budget;
+
+    public Compactor(DB db, int batchPages) {
+        if (batchPages < 1) {
+            throw new IllegalArgumentException("a compaction transaction has to move at least one page");
+        }
+        this.db = db;
+        this.dal = db.getDal();
+        this.batchPages = batchPages;
+    }
+
+    public Result run() throws IOException {
+        long startPage = maxPage();
+        long startNanos = System.nanoTime();
+        try {
+            for (int pass = 0; pass < MaxPasses; pass++) {
+                long moved = movedPages;
+                // The pages of dropped collections are released first, so the walk doesn't have to go over them
+                db.reclaim();
+                boolean pending = hasPendingPages();
+                tree = RootCollectionTree;
+                collectionName = null;
+                resumeKey = null;
+                done = false;
+                while (!done) {
+                    step();
+                }
+                shrink();
+                // Pages that were pending are released by the transactions of the pass, and can be taken by the next
+                if (movedPages == moved && !pending) {
+                    break;
+                }
+            }
+        } finally {
+            db.getWriteLock().lock();
+            try {
+                dal.setFreelistRelocationLimit(Long.MAX_VALUE);
+            } finally {
+                db.getWriteLock().unlock();
+            }
+        }
+        return new Result(movedPages, transactions, (startPage - maxPage()) * dal.getOptions().getPageSize(),
+                System.nanoTime() - startNanos);
+    }
+
+    private long maxPage() {
+        db.getWriteLock().lock();
+        try {
+            return dal.getFreelist().getMaxPage();
+        } finally {
+            db.getWriteLock().unlock();
+        }
+    }
+
+    private boolean hasPendingPages() {
+        db.getWriteLock().lock();
+        try {
+            return !dal.getFreelist().getPendingPages().isEmpty();
+        } finally {
+            db.getWriteLock().unlock();
+        }
+    }
+
+    /**
+     * Reads and moves up to the batch of pages in one write transaction.
+     */
+    private void step() throws IOException {
+        transaction = db.writeTransaction();
+        transactions++;
+        long moved = movedPages;
+        boolean committed = false;
+        try {
+            walkBatch();
+            if (movedPages > moved) {
+                transaction.commit();
+                committed = true;
+            }
+        } finally {
+            if (!committed) {
+                transaction.rollback();
+            }
+            transaction = null;
+        }
+    }
+
+    /**
+     * Walks the trees from where the previous transaction stopped until the batch runs out.
+     */
+    private void walkBatch() throws IOException {
+        Freelist freelist = dal.getFreelist();
+        limit = freelist.getMaxPage() - freelist.getReleasedPageCount() - freelist.getPendingPages().size();
+        budget = batchPages;
+        dal.setFreelistRelocationLimit(limit);
+
+        for (; tree < CollectionTrees; tree++) {
+            Collection collection = null;
+            if (tree == RootCollectionTree) {
+                collection = transaction.getRootCollection();
+            } else if (tree == ReclaimQueueTree && transaction.hasReclaimQueue()) {
+                collection = transaction.getReclaimQueue();
+            }
+            if (collection != null && !walk(collection)) {
+                return;
+            }
+            resumeKey = null;
+        }
+
+        List<byte[]> names = new ArrayList<>();
+        Iterator<Item> records = transaction.getRootCollection().scan(collectionName, null, Integer.MAX_VALUE);
+        while (records.hasNext()) {
+            names.add(records.next().key());
+        }
+        for (byte[] name : names) {
+            if (collectionName == null || !Arrays.equals(collectionName, name)) {
+                collectionName = name;
+                resumeKey = null;
+            }
+            if (!walk(transaction.getCollection(name).get())) {
+                return;
+            }
+        }
+        done = true;
+    }
+
+    /**
+     * Walks the tree of the collection from the resume key on.
+     *
+     * @return whether it got to the end of the tree, otherwise it stopped after a leaf once the batch ran out
+     */
+    private boolean walk(Collection collection) throws IOException {
+        if (collection.getRoot() == 0) {
+            return true;
+        }
+        Node root = move(transaction.getNode(collection.getRoot()), null, 0, collection);
+        return walk(root, collection);
+    }
+
+    private boolean walk(Node node, Collection collection) throws IOException {
+        budget--;
+        moveValues(node, collection);
+        if (node.isLeaf()) {
+            if (budget <= 0 && !node.getItems().isEmpty()) {
+                resumeKey = node.getItems().get(node.getItems().size() - 1).key();
+                return false;
+            }
+            return true;
+        }
+
+        for (int i = 0; i < node.getChildNodes().size(); i++) {
+            // Child i only has keys before item i
+            if (resumeKey != null && i < node.getItems().size() &&
+                    Arrays.compareUnsigned(node.getItems().get(i).key(), resumeKey) <= 0) {
+                continue;
+            }
+            Node child = move(transaction.getNode(node, node.getChildNodes().get(i)), node, i, collection);
+            if (!walk(child, collection)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the node to the lowest free page if it's past the limit and that page is before it, and points its
+     * parent, or the collection if it's the root, at the copy.
+     *
+     * @return the node or its copy
+     */
+    private Node move(Node node, Node parent, int childIndex, Collection collection) {
+        if (!isMovable(node.getPageNum())) {
+            return node;
+        }
+
+        Node moved = transaction.writeNode(transaction.newNode(new ArrayList<>(node.getItems()),
+                new ArrayList<>(node.getChildNodes())));
+        transaction.deleteNode(node);
+        if (parent == null) {
+            collection.setRoot(moved.getPageNum());
+        } else {
+            parent.getChildNodes().set(childIndex, moved.getPageNum());
+            transaction.writeNode(parent);
+        }
+        transaction.collectionChanged(collection);
+        budget--;
+        movedPages++;
+        return moved;
+    }
+
+    /**
+     * Writes the values of the node that have overflow pages past the limit to new overflow pages.
+     */
+    private void moveValues(Node node, Collection collection) throws IOException {
+        boolean changed = false;
+        for (int i = 0; i < node.getItems().size(); i++) {
+            Item item = node.getItems().get(i);
+            if (!item.isOverflow()) {
+                continue;
+            }
+            if (!isMovable(maxOverflowPage(item))) {
+                continue;
+            }
+
+            int pages = dal.overflowPageCount(item.overflowLength());
+            Item moved = transaction.newItem(item.key(), transaction.readValue(item).value());
+            transaction.deleteValue(item);
+            node.getItems().set(i, moved);
+            budget -= pages;
+            movedPages += pages;
+            changed = true;
+        }
+        if (changed) {
+            transaction.writeNode(node);
+            transaction.collectionChanged(collection);
+        }
+    }
+
+    /**
+     * Returns the highest page of the overflow chain of the value. From the freelist bitmap format on, a value takes
+     * pages that follow each other, so it's known without reading the chain. The chains of older files are read, and
+     * count against the batch.
+     */
+    private long maxOverflowPage(Item item) throws IOException {
+        int pages = dal.overflowPageCount(item.overflowLength());
+        if (dal.getMeta().isFreelistBitmap()) {
+            return item.overflowPage() + pages - 1;
+        }
+        budget -= pages;
+        return dal.readOverflowPages(item.overflowPage()).stream().mapToLong(Long::longValue).max().getAsLong();
+    }
+
+    private boolean isMovable(long pageNum) {
+        long free = dal.getFreelist().getFirstReleasedPage();
+        return pageNum > limit && free != 0 && free < pageNum;
+    }
+
+    /**
+     * Takes the free pages at the end of the file off it, and gives their space back. Publishing the freelist frees the
+     * pages of the freelist it replaces, which can be the ones at the end, so it's done twice.
+     */
+    private void shrink() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            transaction = db.writeTransaction();
+            transactions++;
+            dal.getFreelist().shrink();
+            transaction.commit();
+        }
+        transaction = null;
+
+        db.getWriteLock().lock();
+        try {
+            dal.trim();
+        } finally {
+            db.getWriteLock().unlock();
+        }
+    }
+
+    public static class Result {
+        private final long movedPages;
+        private final int transactions;
+        private final long reclaimedBytes;
+        private final long nanos;
+
+        public Result(long movedPages, int transactions, long reclaimedBytes, long nanos) {
+            this.movedPages = movedPages;
+            this.transactions = transactions;
+            this.reclaimedBytes = reclaimedBytes;
+            this.nanos = nanos;
+        }
+
+        public long getMovedPages() {
+            return movedPages;
+        }
+
+        public int getTransactions() {
+            return transactions;
+        }
+
+        /**
+         * Returns by how much the pages of the file went down.
+         */
+        public long getReclaimedBytes() {
+            return reclaimedBytes;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("moved %d pages in %d transactions and %d ms, reclaimed %d bytes", movedPages,
+                    transactions, nanos / 1_000_000, reclaimedBytes);
+        }
+    }
+}
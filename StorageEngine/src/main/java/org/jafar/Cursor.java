@@ -0,0 +1,226 @@
+package org.jafar;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Optional;
+
+/**
+ * Walks the items of a collection in key order, in both directions, one node at a time. Positioning the cursor costs
+ * a descent from the root, and every step after it only reads the nodes it moves into, so reading k items from a
+ * position costs O(log n + k) and holds no more than one node per level of the tree.
+ * The tree has no links between its leaves, every commit copies the nodes it changes to new pages and a link would make
+ * it copy the neighbours of every changed leaf too, all the way to the ends of the tree. Instead the cursor keeps the
+ * path it took from the root, and goes back up it to find the next item. Items are kept in the inner nodes as well,
+ * between the children they separate, so the item after the last one of a child is the one that follows it in its
+ * parent.
+ * The cursor sees the collection as it was when it was positioned, if the collection is changed in the same
+ * transaction it has to be positioned again.
+ */
+public class Cursor {
+    private final Collection collection;
+    private final Transaction transaction;
+    // The path from the root to the current item. The last node holds the item at its index, every node before it
+    // holds the index of the child the path goes through.
+    private final ArrayList<Node> nodes = new ArrayList<>();
+    private final ArrayList<Integer> indexes = new ArrayList<>();
+    private boolean positioned;
+
+    Cursor(Collection collection) {
+        this.collection = collection;
+        this.transaction = collection.getTransaction();
+    }
+
+    /**
+     * Moves to the first item with a key equal to or greater than the given key.
+     */
+    public Optional<Item> seek(byte[] key) throws IOException {
+        reset();
+        long pageNum = collection.getRoot();
+        if (pageNum == 0) {
+            return Optional.empty();
+        }
+
+        while (true) {
+            Node node = transaction.getNode(pageNum);
+            int index = node.findKeyInNode(key);
+            if (index >= 0) {
+                push(node, index);
+                return current();
+            }
+
+            int insertionIndex = -index - 1;
+            push(node, insertionIndex);
+            if (node.isLeaf()) {
+                if (insertionIndex < node.getItems().size()) {
+                    return current();
+                }
+                return upToNext();
+            }
+            pageNum = node.getChildNodes().get(insertionIndex);
+        }
+    }
+
+    public Optional<Item> first() throws IOException {
+        reset();
+        if (collection.getRoot() == 0) {
+            return Optional.empty();
+        }
+        downToFirst(collection.getRoot());
+        return current();
+    }
+
+    public Optional<Item> last() throws IOException {
+        reset();
+        if (collection.getRoot() == 0) {
+            return Optional.empty();
+        }
+        downToLast(collection.getRoot());
+        return current();
+    }
+
+    /**
+     * Moves to the item after the current one, or to the first item if the cursor wasn't positioned yet.
+     *
+     * @return the item, or empty once the cursor went past the last item
+     */
+    public Optional<Item> next() throws IOException {
+        if (!positioned) {
+            return first();
+        }
+        if (nodes.isEmpty()) {
+            return Optional.empty();
+        }
+
+        int top = nodes.size() - 1;
+        Node node = nodes.get(top);
+        int index = indexes.get(top);
+        if (!node.isLeaf()) {
+            // The next item is the first one under the child after the item
+            indexes.set(top, index + 1);
+            downToFirst(node.getChildNodes().get(index + 1));
+            return current();
+        }
+        if (index + 1 < node.getItems().size()) {
+            indexes.set(top, index + 1);
+            return current();
+        }
+        return upToNext();
+    }
+
+    /**
+     * Moves to the item before the current one, or to the last item if the cursor wasn't positioned yet.
+     *
+     * @return the item, or empty once the cursor went past the first item
+     */
+    public Optional<Item> prev() throws IOException {
+        if (!positioned) {
+            return last();
+        }
+        if (nodes.isEmpty()) {
+            return Optional.empty();
+        }
+
+        int top = nodes.size() - 1;
+        Node node = nodes.get(top);
+        int index = indexes.get(top);
+        if (!node.isLeaf()) {
+            // The previous item is the last one under the child before the item, which has the same index
+            downToLast(node.getChildNodes().get(index));
+            return current();
+        }
+        if (index > 0) {
+            indexes.set(top, index - 1);
+            return current();
+        }
+        return upToPrev();
+    }
+
+    /**
+     * Returns the item the cursor is at, empty if it isn't at one.
+     */
+    public Optional<Item> current() throws IOException {
+        if (nodes.isEmpty()) {
+            return Optional.empty();
+        }
+        int top = nodes.size() - 1;
+        Node node = nodes.get(top);
+        int index = indexes.get(top);
+        if (index >= node.getItems().size()) {
+            return Optional.empty();
+        }
+        return Optional.of(transaction.readValue(node.getItems().get(index)));
+    }
+
+    private void reset() {
+        nodes.clear();
+        indexes.clear();
+        positioned = true;
+    }
+
+    private void push(Node node, int index) {
+        nodes.add(node);
+        indexes.add(index);
+    }
+
+    private void pop() {
+        nodes.remove(nodes.size() - 1);
+        indexes.remove(indexes.size() - 1);
+    }
+
+    private void downToFirst(long pageNum) throws IOException {
+        while (true) {
+            Node node = transaction.getNode(pageNum);
+            push(node, 0);
+            if (node.isLeaf()) {
+                return;
+            }
+            pageNum = node.getChildNodes().get(0);
+        }
+    }
+
+    private void downToLast(long pageNum) throws IOException {
+        while (true) {
+            Node node = transaction.getNode(pageNum);
+            if (node.isLeaf()) {
+                // An empty root leaves the cursor past the end, current() then finds nothing at index 0
+                push(node, Math.max(node.getItems().size() - 1, 0));
+                return;
+            }
+            int last = node.getChildNodes().size() - 1;
+            push(node, last);
+            pageNum = node.getChildNodes().get(last);
+        }
+    }
+
+    /**
+     * Leaves a node whose items were all passed, for the first ancestor that has an item after the child the path
+     * goes through.
+     */
+    private Optional<Item> upToNext() throws IOException {
+        pop();
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            if (indexes.get(top) < nodes.get(top).getItems().size()) {
+                // The item after child i is item i
+                return current();
+            }
+            pop();
+        }
+        return Optional.empty();
+    }
+
+    private Optional<Item> upToPrev() throws IOException {
+        pop();
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            int index = indexes.get(top);
+            if (index > 0) {
+                // The item before child i is item i - 1
+                indexes.set(top, index - 1);
+                return current();
+            }
+            pop();
+        }
+        return Optional.empty();
+    }
+}
@@ -2,15 +2,68 @@ package org.jafar;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class DAL {
-    private final RandomAccessFile file;
+    private final PageFile file;
     private final Options options;
-    private final Meta meta;
+    // Replaced rather than changed on commit, so a reader that picked up the meta sees one consistent version
+    private volatile Meta meta;
+    // The metas in the two slots of the meta page, the older one is what a crash during a commit falls back to
+    private final Meta[] metaSlots = new Meta[2];
     private final Freelist freelist;
+    // The pages the chunks of the current version's freelist bitmap are on
+    private long[] freelistChunks = new long[0];
+    // Chunks on pages past this one are moved to new pages the next time the freelist is written, see Compactor
+    private long freelistRelocationLimit = Long.MAX_VALUE;
+    private final NodeCache nodeCache;
+    private final PageArena arena;
+    private final GroupCommitter groupCommitter;
+    private final WriteAheadLog wal;
+    private final ExecutorService prefetcher;
+    private final LongAdder syncs = new LongAdder();
+    // Set once a commit failed part way, see commitFailed
+    private Exception failure;
     private static final int pageNumSize = 8;
+    // Most pages written with a single call, which is also how many arena pages a commit holds at once
+    private static final int MaxWriteRun = 32;
+    // Offsets in the pages of files that aren't in the wide format take 2 bytes
+    private static final int MaxNarrowPageSize = 64 * 1024;
+    private static final int MaxPageSize = 1024 * 1024;
+    // The next page of the chain at the start of every overflow page
+    private static final int OverflowHeaderSize = pageNumSize;
+    // A compressed leaf starts with the flags byte, its length uncompressed and its length compressed
+    private static final int CompressedHeaderSize = 1 + 4 + 4;
+    // The index of a bitmap freelist starts with the max page and the number of chunks
+    private static final int FreelistIndexHeaderSize = 8 + 4;
+    // How many pages a compressed leaf can take uncompressed
+    private static final int MaxCompressionRatio = 8;
+    // A node that's estimated to fit is given this fraction of a page more, as added items can grow its compressed
+    // size by a few bytes more than their own
+    private static final int CompressionSlackFraction = 64;
+    private static final ThreadLocal<Deflater> deflater = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(Inflater::new);
 
     public Freelist getFreelist() {
         return freelist;
@@ -20,116 +73,741 @@ public class DAL {
         return meta;
     }
 
+    public Options getOptions() {
+        return options;
+    }
+
+    public NodeCache getNodeCache() {
+        return nodeCache;
+    }
+
+    public PageArena getArena() {
+        return arena;
+    }
+
+    public long getSyncCount() {
+        return syncs.sum();
+    }
+
+    public WriteAheadLog getWal() {
+        return wal;
+    }
+
     public DAL(String path, Options options) throws IOException, Constants.NotJafarDBFile {
+        if (options.getDurability() == Options.Durability.GROUP && !options.isWriteAheadLog()) {
+            // The meta of a commit could reach the disk before its pages, the log's commit frame is what orders them
+            throw new IllegalArgumentException("group commit needs the write-ahead log");
+        }
+        if (options.getPageSize() > MaxPageSize) {
+            throw new IllegalArgumentException("pages can't be larger than " + MaxPageSize + " bytes");
+        }
         this.options = options;
+        this.nodeCache = new NodeCache(options.getNodeCacheSize());
+        this.arena = new PageArena(options.getPageSize(), options.getPageArenaSize());
 
-        File file = new File(path);
-        if (file.exists()) {
-            this.file = new RandomAccessFile(path, "rw");
-            this.meta = readMeta();
-            this.freelist = readFreelist();
+        boolean exists = new File(path).exists();
+        this.file = PageFile.open(path, options);
+        WriteAheadLog wal = null;
+        try {
+            if (options.isWriteAheadLog()) {
+                if (!exists) {
+                    // A log without its data file belongs to a database that was deleted
+                    Files.deleteIfExists(Paths.get(WriteAheadLog.logPath(path)));
+                }
+                // Opening the log replays whatever a crashed process left in it, so it has to happen before reading meta
+                wal = new WriteAheadLog(WriteAheadLog.logPath(path), file, options.getPageSize(), options.getWalCheckpointFrames());
+            }
+            this.wal = wal;
 
-        } else {
-            this.file = new RandomAccessFile(path, "rw");
-            this.freelist = new Freelist();
-            this.meta = new Meta(freelist.getNextPage());
+            if (exists) {
+                this.meta = readMeta();
+                if (meta.getFormatVersion() > Meta.LatestFormatVersion) {
+                    throw new IOException("unsupported format version " + meta.getFormatVersion());
+                }
+                if (!meta.isWide() && options.getPageSize() > MaxNarrowPageSize) {
+                    throw new IOException("format version " + meta.getFormatVersion() + " can't have pages larger than " +
+                            MaxNarrowPageSize + " bytes");
+                }
+                this.freelist = readFreelist();
 
-            Node collectionsNode = writeNode(new Node());
-            this.meta.setRoot(collectionsNode.getPageNum());
+            } else {
+                this.freelist = new Freelist();
+                this.meta = new Meta(freelist.getNextPage());
+                // The format is chosen when the file is created, later opens keep whatever it was created with
+                this.meta.setFormatVersion(Meta.LatestFormatVersion);
+                this.meta.setFlags((options.isPrefixCompression() ? Meta.PrefixCompressionFlag : 0) |
+                        (options.isLeafCompression() ? Meta.LeafCompressionFlag : 0));
 
-            writeFreelist();
-            writeMeta();
+                Node collectionsNode = writeNode(new Node());
+                this.meta.setRoot(collectionsNode.getPageNum());
+
+                writeFreelist();
+                writeMeta();
+                if (wal != null) {
+                    wal.commit();
+                }
+            }
+        } catch (IOException | Constants.NotJafarDBFile | RuntimeException e) {
+            // Nobody gets the DAL, so nobody else would close what it opened
+            try {
+                if (wal != null) {
+                    wal.abandon();
+                }
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            } finally {
+                try {
+                    file.close();
+                } catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+            }
+            throw e;
+        }
+
+        if (options.getScanReadAhead() > 0) {
+            this.prefetcher = Executors.newFixedThreadPool(options.getPrefetchThreads(), runnable -> {
+                Thread thread = new Thread(runnable, "jafardb-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.prefetcher = null;
+        }
+
+        if (options.getDurability() == Options.Durability.GROUP) {
+            this.groupCommitter = new GroupCommitter(this::sync, options.getGroupCommitWindowMicros(), options.getGroupCommitBatchSize());
+        } else {
+            this.groupCommitter = null;
         }
     }
 
     public void close() throws IOException {
-        writeFreelist();
-//        writeMeta();
-        if (file != null) {
-            file.close();
+        try {
+            if (prefetcher != null) {
+                // Reads that were queued still run, a scan may be waiting for them
+                prefetcher.shutdown();
+                try {
+                    prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for the prefetch threads");
+                }
+            }
+            if (failure == null) {
+                try {
+                    publish(meta.getRoot());
+                } catch (IOException | RuntimeException e) {
+                    commitFailed(e);
+                    throw e;
+                }
+            }
+            if (groupCommitter != null) {
+                groupCommitter.close();
+            }
+        } finally {
+            closeFiles();
+        }
+    }
+
+    /**
+     * Closes the log and the page file, also when checkpointing or syncing them fails. After a failed commit what it
+     * left in the log isn't committed, and the file isn't trimmed to a freelist that may not match it.
+     */
+    private void closeFiles() throws IOException {
+        try {
+            if (wal != null) {
+                if (failure == null) {
+                    wal.close();
+                } else {
+                    wal.abandon();
+                }
+            } else if (options.getDurability() != Options.Durability.NONE) {
+                sync();
+            }
+        } finally {
+            if (file != null) {
+                try {
+                    if (failure == null) {
+                        trim();
+                    }
+                } finally {
+                    file.close();
+                }
+            }
         }
     }
 
+    /**
+     * Forces what was written so far to disk. With a write-ahead log only the log has to be synced.
+     */
+    public void sync() throws IOException {
+        if (wal != null) {
+            wal.sync();
+        } else {
+            file.sync();
+        }
+        syncs.increment();
+    }
+
+    /**
+     * Called by a committing transaction once all of its pages are written, while it still holds the write lock.
+     * With SYNC durability the file is forced right away. {@link #publish(long, long)} calls it after writing the meta.
+     *
+     * @return a ticket for {@link #awaitDurable(long)}
+     */
+    public long endCommit() throws IOException {
+        if (wal != null) {
+            wal.commit();
+        }
+        return switch (options.getDurability()) {
+            case NONE -> 0;
+            case SYNC -> {
+                sync();
+                yield 0;
+            }
+            case GROUP -> groupCommitter.register();
+        };
+    }
+
+    /**
+     * Waits until the commit that got the ticket is durable. Meant to be called after the write lock was released,
+     * so the next writer can go ahead while this one waits for its group to be synced.
+     */
+    public void awaitDurable(long ticket) throws IOException {
+        if (groupCommitter != null) {
+            groupCommitter.awaitDurable(ticket);
+        }
+    }
+
+    /**
+     * Acquires a zeroed page from the arena. The caller has to release it once it's done.
+     */
     public Page allocateEmptyPage() {
-        return new Page(new byte[options.getPageSize()]);
+        return arena.acquire();
     }
 
+    /**
+     * Reads a page. The caller has to release it once it's done.
+     */
     public Page readPage(long pageNum) throws IOException {
-        Page page = allocateEmptyPage();
-        page.setNum(pageNum);
-        long offset = pageNum * options.getPageSize();
-        file.seek(offset);
-        file.read(page.getData());
-        return page;
+        if (wal != null) {
+            Page page = wal.readPage(pageNum, arena);
+            if (page != null) {
+                return page;
+            }
+        }
+        return file.readPage(pageNum, arena);
     }
 
+    /**
+     * Writes the page, to the log if there's one. A failure is the caller's to handle, as the freelist and meta writes
+     * are what commit a version.
+     */
     public void writePage(Page page) throws IOException {
-        long offset = page.getNum() * options.getPageSize();
-        try {
-            file.seek(offset);
-            file.write(page.getData());
-        } catch (IOException e) {
-            System.out.println(e.getMessage());
+        if (wal != null) {
+            wal.append(page.getNum(), page.getData());
+        } else {
+            file.writePage(page.getNum(), page.getData());
         }
     }
 
     public void writeMeta() throws IOException {
-        Page page = allocateEmptyPage();
-        page.setNum(Meta.MetaPageNum);
-        meta.serialize(page.getData());
+        writeMeta(meta);
+    }
+
+    /**
+     * Writes the meta to its slot, next to the one in the other slot. The slot only holds it once it was written.
+     */
+    private void writeMeta(Meta meta) throws IOException {
+        Meta[] slots = metaSlots.clone();
+        slots[(int) (meta.getTxId() % 2)] = meta;
+        try (Page page = allocateEmptyPage()) {
+            page.setNum(Meta.MetaPageNum);
+            for (Meta slot : slots) {
+                if (slot != null) {
+                    slot.serialize(page.getData().slice(slot.slotOffset(options.getPageSize()), options.getPageSize() / 2));
+                }
+            }
 
-        writePage(page);
+            writePage(page);
+        }
+        metaSlots[(int) (meta.getTxId() % 2)] = meta;
     }
 
+    /**
+     * Reads both meta slots and returns the newest one that's intact.
+     */
     public Meta readMeta() throws IOException, Constants.NotJafarDBFile {
-        Page p = readPage(Meta.MetaPageNum);
+        try (Page p = readPage(Meta.MetaPageNum)) {
+            Meta newest = null;
+            for (int slot = 0; slot < metaSlots.length; slot++) {
+                int slotSize = options.getPageSize() / 2;
+                Meta meta = new Meta();
+                try {
+                    meta.deserialize(p.getData().slice(slot * slotSize, slotSize));
+                } catch (Constants.NotJafarDBFile e) {
+                    continue;
+                }
+                metaSlots[slot] = meta;
+                if (newest == null || meta.getTxId() > newest.getTxId()) {
+                    newest = meta;
+                }
+            }
+            if (newest == null) {
+                throw new Constants.NotJafarDBFile();
+            }
+            return newest;
+        }
+    }
 
-        Meta meta = new Meta();
-        meta.deserialize(p.getData());
-        return meta;
+    /**
+     * Makes the version whose root collection is at the given page the current one. The freelist is written to a new
+     * page and the meta to the slot the current version isn't in, so nothing the current version uses is overwritten
+     * and a crash before the meta write completes leaves the current version to open. The reclaim queue stays the same.
+     */
+    public long publish(long root) throws IOException {
+        return publish(root, meta.getReclaimRoot());
     }
 
-    public Freelist readFreelist() throws IOException {
-        Page p = readPage(meta.getFreelistPage());
+    /**
+     * Makes the version whose root collection and reclaim queue are at the given pages the current one. Readers only
+     * get it once its meta is written and, with SYNC durability, on disk. If it throws, the current version stays the
+     * one before, and every later commit fails, see {@link #commitFailed(Exception)}.
+     *
+     * @return a ticket for {@link #awaitDurable(long)}
+     */
+    public long publish(long root, long reclaimRoot) throws IOException {
+        checkCommittable();
+        Meta current = meta;
+        Meta next = new Meta(freelist.getNextPage());
+        next.setRoot(root);
+        next.setReclaimRoot(reclaimRoot);
+        next.setTxId(current.getTxId() + 1);
+        // A file without slots gets them with its first commit
+        next.setFormatVersion(Math.max(current.getFormatVersion(), Meta.FormatVersionPlain));
+        next.setFlags(current.getFlags());
+
+        freelist.deferRelease(next.getTxId(), current.getFreelistPage());
+        writeFreelist(next.getFreelistPage(), next.getTxId());
+        if (wal == null && options.getDurability() == Options.Durability.SYNC) {
+            // Everything the new meta points at has to be on disk before the meta is
+            sync();
+        }
+
+        writeMeta(next);
+        long ticket = endCommit();
+        this.meta = next;
+        return ticket;
+    }
+
+    /**
+     * Fails every commit after one that failed part way. The pages it took and released are in the freelist, but in
+     * no version on disk, so the freelist no longer matches the file until the database is opened again. The version
+     * that was current before stays readable. Called with the write lock held.
+     */
+    void commitFailed(Exception e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
 
+    void checkCommittable() throws IOException {
+        if (failure != null) {
+            throw new IOException("an earlier commit failed, the database has to be opened again", failure);
+        }
+    }
+
+    public Freelist readFreelist() throws IOException {
         Freelist freelist = new Freelist();
-        freelist.deserialize(p.getData());
+        try (Page p = readPage(meta.getFreelistPage())) {
+            if (!meta.isFreelistBitmap()) {
+                freelist.deserialize(p.getData(), meta.isWide());
+                return freelist;
+            }
+
+            ByteBuffer index = p.getData().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            freelist.setMaxPage(index.getLong());
+            freelistChunks = new long[index.getInt()];
+            for (int i = 0; i < freelistChunks.length; i++) {
+                freelistChunks[i] = index.getLong();
+            }
+        }
+
+        int chunkSize = freelistChunkSize();
+        for (int i = 0; i < freelistChunks.length; i++) {
+            try (Page p = readPage(freelistChunks[i])) {
+                ByteBuffer chunk = p.getData().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                long[] bits = new long[chunkSize / Long.SIZE];
+                chunk.asLongBuffer().get(bits);
+                freelist.setFreePages((long) i * chunkSize, bits);
+            }
+        }
         return freelist;
     }
 
     public void writeFreelist() throws IOException {
-        Page page = allocateEmptyPage();
-        page.setNum(meta.getFreelistPage());
-        freelist.serialize(page.getData());
+        writeFreelist(meta.getFreelistPage(), meta.getTxId());
+    }
+
+    /**
+     * Writes the freelist for the given version, with its index at the given page. A bitmap freelist only writes again
+     * the chunks of the bitmap that changed, each to a new page, as the current version's chunks may still be read. A
+     * chunk covers as many pages as a page has bits. Taking a page for a chunk changes the chunk the page is in, and
+     * the page the chunk was on is released, which changes another, so pages are taken until every changed chunk has
+     * one, and only then are the chunks written.
+     */
+    private void writeFreelist(long pageNum, long version) throws IOException {
+        if (!meta.isFreelistBitmap()) {
+            writeFreelistList(pageNum);
+            return;
+        }
+
+        int chunkSize = freelistChunkSize();
+        long[] chunks = freelistChunks;
+        // A freelist that shrank has chunks past its end
+        for (long i = freelist.getMaxPage() / chunkSize + 1; i < chunks.length; i++) {
+            freelist.deferRelease(version, chunks[(int) i]);
+        }
+        BitSet written = new BitSet();
+        boolean taken = true;
+        while (taken) {
+            taken = false;
+            chunks = Arrays.copyOf(chunks, (int) (freelist.getMaxPage() / chunkSize + 1));
+            BitSet changedPages = freelist.getChangedPages();
+            for (int i = 0; i < chunks.length; i++) {
+                long first = (long) i * chunkSize;
+                int changed = changedPages.nextSetBit((int) first);
+                boolean dirty = chunks[i] == 0 || chunks[i] > freelistRelocationLimit ||
+                        (changed >= 0 && changed < first + chunkSize);
+                if (dirty && !written.get(i)) {
+                    written.set(i);
+                    if (chunks[i] != 0) {
+                        freelist.deferRelease(version, chunks[i]);
+                    }
+                    chunks[i] = freelist.getNextPage();
+                    taken = true;
+                }
+            }
+        }
+        if (chunks.length > (options.getPageSize() - FreelistIndexHeaderSize) / pageNumSize) {
+            throw new IOException("a freelist of " + chunks.length + " chunks doesn't fit in its index page");
+        }
+
+        for (int i = written.nextSetBit(0); i >= 0; i = written.nextSetBit(i + 1)) {
+            try (Page page = allocateEmptyPage()) {
+                page.setNum(chunks[i]);
+                ByteBuffer chunk = page.getData().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                chunk.asLongBuffer().put(freelist.getFreePages((long) i * chunkSize, chunkSize));
+                writePage(page);
+            }
+        }
+        try (Page page = allocateEmptyPage()) {
+            page.setNum(pageNum);
+            ByteBuffer index = page.getData().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            index.putLong(freelist.getMaxPage());
+            index.putInt(chunks.length);
+            for (long chunk : chunks) {
+                index.putLong(chunk);
+            }
+            writePage(page);
+        }
+        freelist.clearChangedPages();
+        freelistChunks = chunks;
+    }
+
+    /**
+     * Writes the freelist as the list of the free pages in a single page, the way the formats before
+     * {@link Meta#FormatVersionFreelistBitmap} keep it.
+     */
+    private void writeFreelistList(long pageNum) throws IOException {
+        if (!meta.isWide() && freelist.getMaxPage() > Short.MAX_VALUE) {
+            throw new IOException("format version " + meta.getFormatVersion() + " can't have more than " +
+                    Short.MAX_VALUE + " pages");
+        }
+        int maxListedPages = Freelist.maxListedPages(options.getPageSize(), meta.isWide());
+        if (freelist.getListedPageCount() > maxListedPages) {
+            throw new IOException("format version " + meta.getFormatVersion() + " can't have more than " +
+                    maxListedPages + " free pages");
+        }
+
+        try (Page page = allocateEmptyPage()) {
+            page.setNum(pageNum);
+            freelist.serialize(page.getData(), meta.isWide());
+            writePage(page);
+        }
+    }
+
+    /**
+     * Has the chunks of the freelist that are on pages past the given one written to new pages, which are taken lowest
+     * first, from then on. {@link Long#MAX_VALUE} only writes the chunks that changed again.
+     */
+    public void setFreelistRelocationLimit(long freelistRelocationLimit) {
+        this.freelistRelocationLimit = freelistRelocationLimit;
+    }
+
+    /**
+     * Gives back the space the file takes past the last page in use. The caller has to own the freelist, and its max
+     * page has to be published already, as the version on disk may still use the pages past it otherwise.
+     * The log is checkpointed first, as it can hold pages past the end that a later checkpoint would write home and
+     * grow the file with again.
+     */
+    public void trim() throws IOException {
+        if (wal != null && wal.getFrameCount() > 0 && !wal.checkpoint()) {
+            // A transaction is half way through appending its pages
+            return;
+        }
+        file.trim((freelist.getMaxPage() + 1) * options.getPageSize());
+    }
 
-        writePage(page);
+    private int freelistChunkSize() {
+        return options.getPageSize() * Byte.SIZE;
     }
 
     public void releasePage(long pageNum) {
+        nodeCache.invalidate(pageNum);
         freelist.releasePage(pageNum);
     }
 
+    /**
+     * Returns the node stored in the page. Decoded nodes are kept in the node cache, so the caller always gets its own
+     * copy that it is free to change.
+     */
     public Node getNode(long pageNum) throws IOException {
-        Page p = readPage(pageNum);
+        Node cached = nodeCache.get(pageNum);
+        if (cached != null) {
+            return cached.copy();
+        }
+
+        Node node = readNode(pageNum);
+        nodeCache.put(node);
+        return node.copy();
+    }
+
+    private Node readNode(long pageNum) throws IOException {
         Node node = new Node();
         node.setPageNum(pageNum);
-        node.deserialize(p.getData());
+        try (Page p = readPage(pageNum)) {
+            deserializeNode(node, p);
+        }
         return node;
     }
 
+    /**
+     * Points the view at the node in the page, for a lookup that doesn't change it. A cached node is searched in
+     * place rather than copied. A node that isn't cached is decoded into the cache like {@link #getNode(long)} does,
+     * unless the cache is disabled, then it's searched directly in its page.
+     */
+    public NodeView viewNode(long pageNum, NodeView view) throws IOException {
+        Node cached = nodeCache.get(pageNum);
+        if (cached != null) {
+            return view.wrap(cached);
+        }
+
+        Page p = readPage(pageNum);
+        boolean compressed = isCompressed(p);
+        if (nodeCache.getCapacity() == 0 && !compressed) {
+            return view.wrap(p);
+        }
+
+        Node node = new Node();
+        node.setPageNum(pageNum);
+        try (p) {
+            deserializeNode(node, p);
+        }
+        // Without the cache a compressed node is only decompressed for this view
+        if (nodeCache.getCapacity() > 0) {
+            nodeCache.put(node);
+        }
+        return view.wrap(node);
+    }
+
+    public boolean isRightEdgeSplit() {
+        return options.isRightEdgeSplit();
+    }
+
+    public float getBulkLoadFillFactor() {
+        return options.getBulkLoadFillFactor();
+    }
+
+    public int getScanReadAhead() {
+        return prefetcher != null ? options.getScanReadAhead() : 0;
+    }
+
+    /**
+     * Reads the node on one of the prefetch threads. The node isn't put in the node cache, as the read can finish after
+     * the scan that asked for it is gone and a writer reused the page, the scan caches it with {@link #cacheNode(Node)}
+     * when it takes it.
+     */
+    public CompletableFuture<Node> prefetchNode(long pageNum) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                Node cached = nodeCache.get(pageNum);
+                return cached != null ? cached.copy() : readNode(pageNum);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, prefetcher);
+    }
+
+    /**
+     * Puts a node read by {@link #prefetchNode(long)} in the node cache, and returns a copy the caller is free to change.
+     * Only to be called while the version the node was read from is still pinned.
+     */
+    public Node cacheNode(Node node) {
+        nodeCache.put(node);
+        return node.copy();
+    }
+
     public Node writeNode(Node node) throws IOException {
-        Page page = allocateEmptyPage();
-        if (node.getPageNum() == 0) {
-            page.setNum(freelist.getNextPage());
-            node.setPageNum(page.getNum());
+        try (Page page = allocateEmptyPage()) {
+            if (node.getPageNum() == 0) {
+                page.setNum(freelist.getNextPage());
+                node.setPageNum(page.getNum());
+            } else {
+                page.setNum(node.getPageNum());
+            }
+
+            serializeNode(node, page.getData());
+
+            nodeCache.invalidate(page.getNum());
+            writePage(page);
+        }
+        return node;
+    }
+
+    /**
+     * Writes nodes that all have their page assigned. They're written in page order, and each run of pages that
+     * follow each other in the file goes out as one gathering write. With the write-ahead log, where the order of the
+     * frames doesn't matter, each batch is one append.
+     */
+    public void writeNodes(List<Node> nodes) throws IOException {
+        List<Node> sorted = new ArrayList<>(nodes);
+        sorted.sort(Comparator.comparingLong(Node::getPageNum));
+
+        Page[] run = new Page[MaxWriteRun];
+        int length = 0;
+        try {
+            for (Node node : sorted) {
+                boolean follows = length > 0 && (wal != null || run[length - 1].getNum() + 1 == node.getPageNum());
+                if (length == MaxWriteRun || (length > 0 && !follows)) {
+                    writeRun(run, length);
+                    for (int i = 0; i < length; i++) {
+                        run[i].release();
+                    }
+                    length = 0;
+                }
+
+                Page page = allocateEmptyPage();
+                page.setNum(node.getPageNum());
+                run[length++] = page;
+                serializeNode(node, page.getData());
+                nodeCache.invalidate(page.getNum());
+            }
+            writeRun(run, length);
+        } finally {
+            for (int i = 0; i < length; i++) {
+                run[i].release();
+            }
+        }
+    }
+
+    private void writeRun(Page[] run, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        ByteBuffer[] pages = new ByteBuffer[length];
+        long[] pageNums = new long[length];
+        for (int i = 0; i < length; i++) {
+            pages[i] = run[i].getData();
+            pageNums[i] = run[i].getNum();
+        }
+
+        if (wal != null) {
+            wal.append(pageNums, pages);
         } else {
-            page.setNum(node.getPageNum());
+            file.writePages(pageNums[0], pages);
         }
+    }
 
-        node.serialize(page.getData());
+    /**
+     * Returns how long a value can be and still be stored in a node, longer ones go to overflow pages.
+     */
+    public int getMaxInlineValueSize() {
+        return Math.min(options.getMaxInlineValueSize(), 255);
+    }
 
-        writePage(page);
-        return node;
+    /**
+     * Returns how many overflow pages a value of the given length takes up.
+     */
+    public int overflowPageCount(int length) {
+        int capacity = options.getPageSize() - OverflowHeaderSize;
+        return (length + capacity - 1) / capacity;
+    }
+
+    /**
+     * Writes the value to a chain of overflow pages. Each page starts with the number of the next one, 0 on the last.
+     */
+    public void writeOverflow(long[] pageNums, byte[] value) throws IOException {
+        int capacity = options.getPageSize() - OverflowHeaderSize;
+        Page[] run = new Page[MaxWriteRun];
+        int length = 0;
+        try {
+            for (int i = 0; i < pageNums.length; i++) {
+                boolean follows = length > 0 && (wal != null || run[length - 1].getNum() + 1 == pageNums[i]);
+                if (length == MaxWriteRun || (length > 0 && !follows)) {
+                    writeRun(run, length);
+                    for (int j = 0; j < length; j++) {
+                        run[j].release();
+                    }
+                    length = 0;
+                }
+
+                Page page = allocateEmptyPage();
+                page.setNum(pageNums[i]);
+                run[length++] = page;
+                ByteBuffer data = page.getData().order(ByteOrder.LITTLE_ENDIAN);
+                data.putLong(0, i + 1 < pageNums.length ? pageNums[i + 1] : 0);
+                int from = i * capacity;
+                data.put(OverflowHeaderSize, value, from, Math.min(capacity, value.length - from));
+                nodeCache.invalidate(pageNums[i]);
+            }
+            writeRun(run, length);
+        } finally {
+            for (int i = 0; i < length; i++) {
+                run[i].release();
+            }
+        }
+    }
+
+    /**
+     * Reads a value of the given length from the chain of overflow pages starting at the page.
+     */
+    public byte[] readOverflow(long pageNum, int length) throws IOException {
+        int capacity = options.getPageSize() - OverflowHeaderSize;
+        byte[] value = new byte[length];
+        for (int from = 0; from < length; from += capacity) {
+            try (Page page = readPage(pageNum)) {
+                ByteBuffer data = page.getData().order(ByteOrder.LITTLE_ENDIAN);
+                data.get(OverflowHeaderSize, value, from, Math.min(capacity, length - from));
+                pageNum = data.getLong(0);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Returns the pages of the chain of overflow pages starting at the page.
+     */
+    public List<Long> readOverflowPages(long pageNum) throws IOException {
+        List<Long> pageNums = new ArrayList<>();
+        while (pageNum != 0) {
+            pageNums.add(pageNum);
+            try (Page page = readPage(pageNum)) {
+                pageNum = page.getData().order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+            }
+        }
+        return pageNums;
     }
 
     public void deleteNode(long pageNum) {
@@ -141,7 +819,67 @@ public class DAL {
     }
 
     public boolean isOverPopulated(Node node) {
-        return node.nodeSize() > maxThreshold();
+        return isOverPopulated(node, 1);
+    }
+
+    /**
+     * Whether the node takes more than the given fraction of the max fill percent of a page.
+     */
+    public boolean isOverPopulated(Node node, float fillFactor) {
+        return room(node, fillFactor) < 0;
+    }
+
+    /**
+     * Returns how much more the node can take before it's over the given fraction of the max fill percent, negative
+     * when it's over. A leaf that's too large for a page uncompressed has what its compressed size leaves, appending
+     * items to it doesn't grow its compressed size by more than their size, give or take a few bytes.
+     */
+    float room(Node node, float fillFactor) {
+        int size = nodeSize(node);
+        float threshold = maxThreshold() * fillFactor;
+        if (size <= threshold || !isCompressible(node, size)) {
+            return threshold - size;
+        }
+
+        // Compressing the node for every item put in it would cost as much as all of its items, so it's only compressed
+        // again once the items added since it was last compressed could have taken the room it had left
+        float estimate = estimateCompressedSize(node) + (float) options.getPageSize() / CompressionSlackFraction;
+        if (estimate <= threshold) {
+            return threshold - estimate;
+        }
+        return threshold - compressedNodeSize(node);
+    }
+
+    /**
+     * The items of a node when it was last compressed, the prefix their keys shared and the size they took compressed.
+     */
+    record Compressed(Set<Item> items, int prefixLength, int size) {
+        static Compressed of(Node node, int prefixLength, int size) {
+            Set<Item> items = Collections.newSetFromMap(new IdentityHashMap<>());
+            items.addAll(node.getItems());
+            return new Compressed(items, prefixLength, size);
+        }
+    }
+
+    /**
+     * Returns what the node takes compressed at most, going by its size when it was last compressed and the size of
+     * every item added since, or {@link Integer#MAX_VALUE} if it has to be compressed to tell. A node whose keys share a
+     * different prefix has all of its keys written differently.
+     */
+    private int estimateCompressedSize(Node node) {
+        Compressed compressed = node.getCompressed();
+        int prefixLength = isPrefixCompression() ? node.commonPrefixLength() : 0;
+        if (compressed == null || compressed.prefixLength() != prefixLength) {
+            return Integer.MAX_VALUE;
+        }
+
+        long size = compressed.size();
+        for (int i = 0; i < node.getItems().size(); i++) {
+            if (!compressed.items().contains(node.getItems().get(i))) {
+                size += node.elementSize(i, prefixLength, meta.isWide());
+            }
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
     }
 
     public float minThreshold() {
@@ -149,18 +887,27 @@ public class DAL {
     }
 
     public boolean isUnderPopulated(Node node) {
-        return (float) node.nodeSize() < minThreshold();
+        return (float) nodeSize(node) < minThreshold();
     }
 
     public int getSplitIndex(Node node) {
-        int size = Constants.NodeHeaderSize;
+        boolean exactSizes = meta.getFormatVersion() > Meta.FormatVersionPlain;
+        // The halves share at least the prefix of the whole node, so their sizes are never underestimated
+        int prefixLength = isPrefixCompression() ? node.commonPrefixLength() : 0;
+        int size = exactSizes ? node.headerSize(prefixLength, meta.isWide()) : Constants.NodeHeaderSize;
+        // A compressed leaf is split in halves, keeping just over the min fill percent would leave a node that takes a
+        // page for a fraction of what it can hold
+        float minSize = minThreshold();
+        if (isLeafCompression() && node.isLeaf()) {
+            minSize = Math.max(minSize, nodeSize(node) / 2F);
+        }
 
         for (int i = 0; i < node.getItems().size(); i++) {
-            size += node.elementSize(i);
+            size += exactSizes ? node.elementSize(i, prefixLength, meta.isWide()) : node.elementSize(i);
 
             // if we have a big enough page size (more than minimum), and didn't reach the last node, which means we can
             // spare an element
-            if ( size > minThreshold() && i < node.getItems().size() - 1) {
+            if ( size > minSize && i < node.getItems().size() - 1) {
                 return i + 1;
             }
         }
@@ -168,6 +915,183 @@ public class DAL {
         return -1;
     }
 
+    /**
+     * Returns where to split a node that only grows at its end, such as the rightmost leaf of a tree that's given keys
+     * that keep increasing. The node keeps as many items as fit under the max fill percent and only the rest go to
+     * the new node, so the nodes left behind are full rather than half full. Falls back to
+     * {@link #getSplitIndex(Node)} for a node that's too small to leave an item on both sides.
+     */
+    public int getRightEdgeSplitIndex(Node node) {
+        int count = node.getItems().size();
+        if (count < 3) {
+            return getSplitIndex(node);
+        }
+
+        boolean exactSizes = meta.getFormatVersion() > Meta.FormatVersionPlain;
+        int prefixLength = isPrefixCompression() ? node.commonPrefixLength() : 0;
+        int size = exactSizes ? node.headerSize(prefixLength, meta.isWide()) : Constants.NodeHeaderSize;
+
+        for (int i = 0; i < count - 2; i++) {
+            size += exactSizes ? node.elementSize(i, prefixLength, meta.isWide()) : node.elementSize(i);
+            // Item i doesn't fit, it's the one that goes up
+            if (size > maxThreshold()) {
+                return Math.max(i, 1);
+            }
+        }
+        return count - 2;
+    }
+
+    /**
+     * Returns where to split a node that can be many times too large for a page, in a single pass. Every index is the
+     * item that separates two of the parts, and every part ends with the item that takes it over the min fill
+     * percent, the same as with {@link #getSplitIndex(Node)}.
+     */
+    public List<Integer> getSplitIndexes(Node node) {
+        boolean exactSizes = meta.getFormatVersion() > Meta.FormatVersionPlain;
+        int prefixLength = isPrefixCompression() ? node.commonPrefixLength() : 0;
+        int headerSize = exactSizes ? node.headerSize(prefixLength, meta.isWide()) : Constants.NodeHeaderSize;
+
+        List<Integer> splitIndexes = new ArrayList<>();
+        int size = headerSize;
+        int count = node.getItems().size();
+        for (int i = 0; i < count; i++) {
+            size += exactSizes ? node.elementSize(i, prefixLength, meta.isWide()) : node.elementSize(i);
+            // The part after the separator needs an item too
+            if (size > minThreshold() && i + 2 < count) {
+                splitIndexes.add(i + 1);
+                size = headerSize;
+                i++;
+            }
+        }
+        return splitIndexes;
+    }
+
+    /**
+     * Whether nodes are written with the prefix their keys share stored once, which depends on the format of the file.
+     */
+    public boolean isPrefixCompression() {
+        return meta.isPrefixCompression();
+    }
+
+    public boolean isLeafCompression() {
+        return meta.isLeafCompression();
+    }
+
+    /**
+     * Whether the node is written compressed when it's too large for a page, which only leaves are.
+     */
+    private boolean isCompressible(Node node, int size) {
+        return isLeafCompression() && node.isLeaf() && size <= Math.min(options.getPageSize() * MaxCompressionRatio, MaxPageSize);
+    }
+
+    /**
+     * Returns the size the node takes in a page compressed, header included, or {@link Integer#MAX_VALUE} if it doesn't
+     * fit in one.
+     */
+    public int compressedNodeSize(Node node) {
+        byte[] compressed = new byte[options.getPageSize() - CompressedHeaderSize];
+        int length = compress(node, nodeSize(node), compressed);
+        return length < 0 ? Integer.MAX_VALUE : CompressedHeaderSize + length;
+    }
+
+    private void setCompressed(Node node, int compressedSize) {
+        int prefixLength = isPrefixCompression() ? node.commonPrefixLength() : 0;
+        node.setCompressed(Compressed.of(node, prefixLength, compressedSize));
+    }
+
+    /**
+     * Compresses the node into the buffer.
+     *
+     * @return the compressed length, or -1 if it doesn't fit in the buffer
+     */
+    private int compress(Node node, int size, byte[] compressed) {
+        ByteBuffer plain = ByteBuffer.allocate(size);
+        node.serialize(plain, isPrefixCompression(), meta.isWide());
+
+        Deflater deflater = DAL.deflater.get();
+        deflater.reset();
+        deflater.setInput(plain.array());
+        deflater.finish();
+        int length = deflater.deflate(compressed);
+        if (!deflater.finished()) {
+            return -1;
+        }
+        setCompressed(node, CompressedHeaderSize + length);
+        return length;
+    }
+
+    /**
+     * Writes the node to the page. A leaf that's too large for the page is written compressed, behind
+     * {@link Node#CompressedFlag} and its two lengths, which only happens with leaf compression as only then a leaf is
+     * allowed to grow larger.
+     */
+    private void serializeNode(Node node, ByteBuffer data) {
+        int size = nodeSize(node);
+        if (size <= options.getPageSize() || !isCompressible(node, size)) {
+            node.serialize(data, isPrefixCompression(), meta.isWide());
+            return;
+        }
+
+        byte[] compressed = new byte[options.getPageSize() - CompressedHeaderSize];
+        int length = compress(node, size, compressed);
+        if (length < 0) {
+            throw new IllegalStateException("node " + node.getPageNum() + " doesn't fit in a page compressed");
+        }
+        ByteBuffer buf = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(0, (byte) Node.CompressedFlag);
+        buf.putInt(1, size);
+        buf.putInt(5, length);
+        buf.put(CompressedHeaderSize, compressed, 0, length);
+    }
+
+    private static boolean isCompressed(Page page) {
+        return (page.getData().get(0) & Node.CompressedFlag) != 0;
+    }
+
+    private void deserializeNode(Node node, Page page) throws IOException {
+        node.deserialize(nodeData(page));
+        if (isCompressed(page)) {
+            setCompressed(node, CompressedHeaderSize + page.getData().order(ByteOrder.LITTLE_ENDIAN).getInt(5));
+        }
+    }
+
+    /**
+     * Returns what the node in the page was serialized to, decompressing it if it's compressed.
+     */
+    private ByteBuffer nodeData(Page page) throws IOException {
+        if (!isCompressed(page)) {
+            return page.getData();
+        }
+
+        ByteBuffer buf = page.getData().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        byte[] compressed = new byte[buf.getInt(5)];
+        buf.get(CompressedHeaderSize, compressed);
+        byte[] plain = new byte[buf.getInt(1)];
+
+        Inflater inflater = DAL.inflater.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            if (inflater.inflate(plain) != plain.length) {
+                throw new IOException("compressed node in page " + page.getNum() + " is truncated");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("compressed node in page " + page.getNum() + " is corrupted", e);
+        }
+        return ByteBuffer.wrap(plain);
+    }
+
+    /**
+     * Returns the size of the node in a page. Files created before the format version was recorded keep sizing nodes
+     * the way they always did, so their trees keep their shape.
+     */
+    int nodeSize(Node node) {
+        if (meta.getFormatVersion() <= Meta.FormatVersionPlain) {
+            return node.nodeSize();
+        }
+        return node.nodeSize(isPrefixCompression() ? node.commonPrefixLength() : 0, meta.isWide());
+    }
+
     public Node newNode(List<Item> items, List<Long> childNodes) {
         Node node = new Node();
         node.setItems(items);
@@ -1,16 +1,20 @@
 package org.jafar;
 
 import java.io.IOException;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DB {
 
-    private final ReadWriteLock rwlock;
+    // Only writers take the lock. Readers work on the version that was committed when they started, which writers
+    // never overwrite, so they neither wait for a writer nor make one wait.
+    private final Lock writeLock;
+    private final SnapshotRegistry snapshots;
     private final DAL dal;
+    private final Reclaimer reclaimer;
 
-    public ReadWriteLock getRwlock() {
-        return rwlock;
+    public Lock getWriteLock() {
+        return writeLock;
     }
 
     public DAL getDal() {
@@ -20,10 +24,17 @@ public class DB {
     /**
      * Constructor for the DB class.
      * @param dal Data access layer instance.
+     * @param options Options for the DB.
      */
-    private DB(DAL dal) {
-        this.rwlock = new ReentrantReadWriteLock();
+    private DB(DAL dal, Options options) {
+        this.writeLock = new ReentrantLock();
+        this.snapshots = new SnapshotRegistry(options.getMaxReadTransactions());
         this.dal = dal;
+        this.reclaimer = new Reclaimer(this, options.getReclaimBatchPages());
+        if (dal.getMeta().getReclaimRoot() != 0) {
+            // Pages queued before the database was closed
+            reclaimer.wake();
+        }
     }
 
     /**
@@ -35,7 +46,7 @@ public class DB {
      */
     public static DB open(String path, Options options) throws IOException, Constants.NotJafarDBFile {
         DAL dal = new DAL(path, options);
-        return new DB(dal);
+        return new DB(dal, options);
     }
 
     /**
@@ -43,24 +54,83 @@ public class DB {
      * @throws IOException if there's an issue closing the DB.
      */
     public void close() throws IOException {
+        reclaimer.close();
         dal.close();
     }
 
     /**
-     * Acquires a read lock and returns a read-only transaction.
+     * Returns a read-only transaction pinned to the latest committed version. No lock is taken.
      * @return A new read-only transaction.
      */
     public Transaction readTransaction() {
-        rwlock.readLock().lock();
-        return new Transaction(this, false);
+        Meta snapshot = dal.getMeta();
+        int slot = snapshots.acquire(snapshot.getTxId());
+        // A writer that published a newer version before the slot was taken may not have seen it, and may have
+        // released the pages of this version already. It can't have released the pages of the version it published.
+        for (Meta latest = dal.getMeta(); latest != snapshot; latest = dal.getMeta()) {
+            snapshot = latest;
+            snapshots.update(slot, snapshot.getTxId());
+        }
+        return new Transaction(this, false, snapshot, slot);
     }
 
     /**
-     * Acquires a write lock and returns a writable transaction.
+     * Acquires the write lock and returns a writable transaction.
      * @return A new writable transaction.
      */
     public Transaction writeTransaction() {
-        rwlock.writeLock().lock();
+        writeLock.lock();
         return new Transaction(this, true);
     }
+
+    /**
+     * Moves the pages in use at the end of the file toward its start and shrinks the file, see {@link Compactor}.
+     * It runs as a series of small write transactions, so writers can go on while it does.
+     * @return What the compaction moved and reclaimed.
+     * @throws IOException if there's an issue moving the pages.
+     */
+    public Compactor.Result compact() throws IOException {
+        return compact(Compactor.DefaultBatchPages);
+    }
+
+    /**
+     * Compacts the file moving up to the given number of pages in each write transaction.
+     * @param pagesPerTransaction How many pages a write transaction moves at most.
+     * @return What the compaction moved and reclaimed.
+     * @throws IOException if there's an issue moving the pages.
+     */
+    public Compactor.Result compact(int pagesPerTransaction) throws IOException {
+        return new Compactor(this, pagesPerTransaction).run();
+    }
+
+    /**
+     * Releases the pages of every dropped collection that weren't released yet, see {@link Reclaimer}. It runs as a
+     * series of small write transactions, so writers can go on while it does.
+     * @return How many pages were released.
+     * @throws IOException if there's an issue reading the dropped collections.
+     */
+    public long reclaim() throws IOException {
+        return reclaimer.reclaim();
+    }
+
+    /**
+     * Called by a write transaction that dropped collections once it committed.
+     */
+    void collectionsDropped() {
+        reclaimer.wake();
+    }
+
+    void endRead(Transaction transaction) {
+        if (transaction.getSnapshotSlot() != -1) {
+            snapshots.release(transaction.getSnapshotSlot());
+        }
+    }
+
+    /**
+     * Releases the pages that older versions used once no reader is left that could be reading them. Called by the
+     * writer, which owns the freelist, after it published its version.
+     */
+    void releasePendingPages() {
+        dal.getFreelist().releasePending(snapshots.oldest(dal.getMeta().getTxId()));
+    }
 }
@@ -0,0 +1,121 @@
+package org.jafar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes pages with positional FileChannel calls. There is no shared file cursor, so any number of threads
+ * can read pages at the same time.
+ * The file is grown ahead of the pages written past its end, doubling up to the growth size at a time, so its size,
+ * which the file system has to update in its metadata, changes once in many writes instead of on every new page. The
+ * file can be larger than the pages the database uses, {@link #trim(long)} gives the rest back. Only the DAL knows where
+ * those pages end, so writes past it aren't refused, and the file grows again for one written after it was trimmed.
+ */
+public class FileChannelPageFile implements PageFile {
+    private final FileChannel channel;
+    private final int pageSize;
+    private final long growthSize;
+    private volatile long size;
+
+    public FileChannelPageFile(String path, int pageSize) throws IOException {
+        this(path, pageSize, pageSize);
+    }
+
+    public FileChannelPageFile(String path, int pageSize, long growthSize) throws IOException {
+        if (growthSize < pageSize) {
+            throw new IllegalArgumentException("the file has to grow by at least a page at a time");
+        }
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pageSize = pageSize;
+        this.growthSize = growthSize;
+        this.size = channel.size();
+    }
+
+    @Override
+    public Page readPage(long pageNum, PageArena arena) throws IOException {
+        Page page = arena.acquireForRead();
+        page.setNum(pageNum);
+
+        ByteBuffer data = page.getData();
+        long position = pageNum * pageSize;
+        while (data.hasRemaining()) {
+            int read = channel.read(data, position + data.position());
+            if (read == -1) {
+                // Past the end of the file, the rest of the page reads as zeroes
+                data.put(new byte[data.remaining()]);
+                break;
+            }
+        }
+        data.clear();
+        return page;
+    }
+
+    @Override
+    public void writePage(long pageNum, ByteBuffer data) throws IOException {
+        // Work on a view so callers can share the buffer between threads
+        ByteBuffer view = data.duplicate().position(0);
+        long position = pageNum * pageSize;
+        ensureSize(position + pageSize);
+        while (view.hasRemaining()) {
+            channel.write(view, position + view.position());
+        }
+    }
+
+    /**
+     * Writes the pages with a single gathering write. Those aren't positional, so they're serialized against each
+     * other to keep the channel position from moving under them.
+     */
+    @Override
+    public synchronized void writePages(long firstPageNum, ByteBuffer[] pages) throws IOException {
+        ByteBuffer[] views = new ByteBuffer[pages.length];
+        for (int i = 0; i < pages.length; i++) {
+            views[i] = pages[i].duplicate().position(0);
+        }
+        ensureSize((firstPageNum + pages.length) * pageSize);
+        channel.position(firstPageNum * pageSize);
+        while (views[views.length - 1].hasRemaining()) {
+            channel.write(views);
+        }
+    }
+
+    private void ensureSize(long end) throws IOException {
+        if (end > size) {
+            grow(end);
+        }
+    }
+
+    /**
+     * Grows the file to at least the given size. Writing its last byte is enough to extend it, there's no portable way
+     * to have the file system allocate the blocks before they're written to.
+     */
+    private synchronized void grow(long end) throws IOException {
+        if (end <= size) {
+            return;
+        }
+        long grown = Math.max(end, size + Math.min(size, growthSize));
+        grown = (grown + pageSize - 1) / pageSize * pageSize;
+        channel.write(ByteBuffer.allocate(1), grown - 1);
+        size = grown;
+    }
+
+    @Override
+    public synchronized void trim(long length) throws IOException {
+        if (length < size) {
+            channel.truncate(length);
+            size = length;
+        }
+    }
+
+    @Override
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -3,61 +3,307 @@ package org.jafar;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
 
+/**
+ * Keeps track of the pages of the file that are free, as a bitmap over the page numbers. Pages are handed out lowest
+ * first, and {@link #getNextPages(int)} hands out runs of pages that follow each other, so nodes written together land
+ * next to each other in the file and can be written and read with one call.
+ * Every page whose bit changes is marked, so the DAL only writes again the parts of the persisted bitmap that changed,
+ * see {@link #getChangedPages()}. Page numbers are bit indexes, so there can't be more than {@link #MaxPages} pages.
+ */
 public class Freelist {
+    public static final long MaxPages = Integer.MAX_VALUE;
+
     private long maxPage; // Holds the maximum page allocated. maxPage*PageSize = fileSize
-    private List<Long> releasedPages; // Pages that were previously allocated but are now free
+    private final BitSet releasedPages; // Pages that were previously allocated but are now free
+    // Pages that stopped being used by the version (the key) that replaced them, but that readers of older versions
+    // may still be reading. They're released once those readers are gone, and are persisted as released since nothing
+    // reads old versions after a restart.
+    private final TreeMap<Long, Pages> pendingPages;
+    // Pages that are either released or pending, which are the ones persisted as free
+    private final BitSet freePages;
+    // Pages whose bit in freePages changed since the freelist was last persisted
+    private final BitSet changedPages;
+    // No page below this one is released
+    private long firstReleased;
     private static final long metaPage = 0; // max metaPage used by DB, currently only page 0
 
     public Freelist() {
         this.maxPage = metaPage;
-        this.releasedPages = new ArrayList<>();
+        this.releasedPages = new BitSet();
+        this.pendingPages = new TreeMap<>();
+        this.freePages = new BitSet();
+        this.changedPages = new BitSet();
+        this.firstReleased = maxPage + 1;
     }
 
     public long getMaxPage() { return maxPage; }
-    public List<Long> getReleasedPages() { return releasedPages; }
 
-    public void setMaxPage(long maxPage) { this.maxPage = maxPage; }
-    public void setReleasedPages(List<Long> releasedPages) { this.releasedPages = releasedPages; }
+    /**
+     * Returns the released pages in page order. It's a copy, use {@link #getReleasedPageCount()} to count them.
+     */
+    public List<Long> getReleasedPages() {
+        List<Long> pages = new ArrayList<>(releasedPages.cardinality());
+        releasedPages.stream().forEach(page -> pages.add((long) page));
+        return pages;
+    }
 
+    public int getReleasedPageCount() {
+        return releasedPages.cardinality();
+    }
+
+    public List<Long> getPendingPages() {
+        List<Long> pages = new ArrayList<>();
+        pendingPages.values().forEach(pending -> pending.forEach(pages::add));
+        return pages;
+    }
+
+    public void setMaxPage(long maxPage) {
+        checkPage(maxPage);
+        this.maxPage = maxPage;
+    }
+
+    public void setReleasedPages(List<Long> releasedPages) {
+        this.releasedPages.stream().forEach(page -> markFree(page, false));
+        this.releasedPages.clear();
+        firstReleased = maxPage + 1;
+        releasedPages.forEach(this::releasePage);
+    }
 
     public long getNextPage() {
-        if (!releasedPages.isEmpty()) {
-            long pageID = releasedPages.get(releasedPages.size() - 1);
-            releasedPages.remove(releasedPages.size() - 1);
-            return pageID;
+        int page = releasedPages.nextSetBit(index(firstReleased));
+        if (page >= 0) {
+            take(page, 1);
+            firstReleased = page + 1;
+            return page;
         }
-        maxPage += 1;
+        setMaxPage(maxPage + 1);
+        firstReleased = maxPage + 1;
         return maxPage;
     }
 
+    /**
+     * Returns the first of count pages that follow each other, the first run of released pages that's long enough, or
+     * pages past the end of the file. A run of released pages at the end of the file is extended past it.
+     */
+    public long getNextPages(int count) {
+        if (count == 1) {
+            return getNextPage();
+        }
+
+        int from = index(firstReleased);
+        while (true) {
+            int start = releasedPages.nextSetBit(from);
+            if (start < 0) {
+                break;
+            }
+            int end = releasedPages.nextClearBit(start);
+            if (end - start >= count) {
+                take(start, count);
+                return start;
+            }
+            if (end == maxPage + 1) {
+                // The run ends at the end of the file, the rest of the pages are added after it
+                take(start, end - start);
+                setMaxPage(start + count - 1L);
+                return start;
+            }
+            from = end;
+        }
+
+        long first = maxPage + 1;
+        setMaxPage(maxPage + count);
+        firstReleased = maxPage + 1;
+        return first;
+    }
+
+    private void take(int start, int count) {
+        releasedPages.clear(start, start + count);
+        for (int page = start; page < start + count; page++) {
+            markFree(page, false);
+        }
+        if (start == firstReleased) {
+            firstReleased = start + count;
+        }
+    }
+
     public void releasePage(long page) {
-        releasedPages.add(page);
+        int index = index(page);
+        releasedPages.set(index);
+        markFree(index, true);
+        firstReleased = Math.min(firstReleased, page);
+    }
+
+    /**
+     * Releases the page once no reader of a version older than the given one is left.
+     */
+    public void deferRelease(long version, long page) {
+        pendingPages.computeIfAbsent(version, v -> new Pages()).add(page);
+        markFree(index(page), true);
+    }
+
+    /**
+     * Releases the pages whose last readers were of versions older than the given one.
+     */
+    public void releasePending(long oldestReadVersion) {
+        var releasable = pendingPages.headMap(oldestReadVersion, true);
+        releasable.values().forEach(pending -> pending.forEach(page -> {
+            releasedPages.set(index(page));
+            firstReleased = Math.min(firstReleased, page);
+        }));
+        releasable.clear();
+    }
+
+    /**
+     * Returns the page {@link #getNextPage()} would hand out if it's a released one, 0 if there's none.
+     */
+    public long getFirstReleasedPage() {
+        int page = releasedPages.nextSetBit(index(firstReleased));
+        return Math.max(page, 0);
+    }
+
+    /**
+     * Takes the released pages at the end of the file off it.
+     *
+     * @return the max page after it
+     */
+    public long shrink() {
+        while (maxPage > metaPage && releasedPages.get(index(maxPage))) {
+            releasedPages.clear(index(maxPage));
+            markFree(index(maxPage), false);
+            maxPage--;
+        }
+        firstReleased = Math.min(firstReleased, maxPage + 1);
+        return maxPage;
+    }
+
+    /**
+     * Whether the page is persisted as free, which it is when it's either released or pending.
+     */
+    public boolean isFree(long page) {
+        return freePages.get(index(page));
+    }
+
+    /**
+     * Returns the pages whose persisted state changed since {@link #clearChangedPages()} was last called.
+     */
+    public BitSet getChangedPages() {
+        return changedPages;
+    }
+
+    public void clearChangedPages() {
+        changedPages.clear();
+    }
+
+    /**
+     * Returns the persisted free state of the pages from the given one on, one bit per page, in little endian longs.
+     */
+    public long[] getFreePages(long from, int count) {
+        return freePages.get(index(from), (int) Math.min(from + count, MaxPages)).toLongArray();
+    }
+
+    /**
+     * Marks the pages set in the bits, one bit per page from the given one on, as released.
+     */
+    public void setFreePages(long from, long[] bits) {
+        BitSet pages = BitSet.valueOf(bits);
+        for (int i = pages.nextSetBit(0); i >= 0; i = pages.nextSetBit(i + 1)) {
+            long page = from + i;
+            if (page <= maxPage) {
+                releasePage(page);
+            }
+        }
+        changedPages.clear();
+    }
+
+    private void markFree(int page, boolean free) {
+        if (freePages.get(page) != free) {
+            freePages.set(page, free);
+            changedPages.set(page);
+        }
+    }
+
+    private static void checkPage(long page) {
+        if (page < 0 || page >= MaxPages) {
+            throw new IllegalStateException("the freelist can't keep track of more than " + MaxPages + " pages");
+        }
+    }
+
+    private static int index(long page) {
+        checkPage(page);
+        return (int) page;
     }
 
     public void serialize(byte[] buf) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+        serialize(ByteBuffer.wrap(buf));
+    }
+
+    public void serialize(ByteBuffer buf) {
+        serialize(buf, false);
+    }
 
-        byteBuffer.putShort((short) maxPage);
-        byteBuffer.putShort((short) releasedPages.size());
+    /**
+     * Returns how many released pages the single page freelist of the formats before
+     * {@link Meta#FormatVersionFreelistBitmap} can hold in a page of the given size.
+     */
+    public static int maxListedPages(int pageSize, boolean wide) {
+        return (pageSize - (wide ? 8 + 4 : 2 + 2)) / Constants.PageNumSize;
+    }
+
+    public int getListedPageCount() {
+        return freePages.cardinality();
+    }
 
-        for (Long page : releasedPages) {
+    /**
+     * Writes the freelist to the page as a list of the free pages, the way the formats before
+     * {@link Meta#FormatVersionFreelistBitmap} keep it. The wide format counts pages in 8 bytes and the released pages
+     * in 4, instead of 2 bytes for both.
+     */
+    public void serialize(ByteBuffer buf, boolean wide) {
+        ByteBuffer byteBuffer = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        if (wide) {
+            byteBuffer.putLong(maxPage);
+            byteBuffer.putInt(freePages.cardinality());
+        } else {
+            byteBuffer.putShort((short) maxPage);
+            byteBuffer.putShort((short) freePages.cardinality());
+        }
+
+        for (int page = freePages.nextSetBit(0); page >= 0; page = freePages.nextSetBit(page + 1)) {
             byteBuffer.putLong(page);
         }
+        changedPages.clear();
     }
 
     public void deserialize(byte[] data) {
-        ByteBuffer buf = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        deserialize(ByteBuffer.wrap(data));
+    }
+
+    public void deserialize(ByteBuffer data) {
+        deserialize(data, false);
+    }
 
-        maxPage = buf.getShort();
+    public void deserialize(ByteBuffer data, boolean wide) {
+        ByteBuffer buf = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
 
-        int releasedPagesCount = buf.getShort();
+        setMaxPage(wide ? buf.getLong() : buf.getShort());
+
+        int releasedPagesCount = wide ? buf.getInt() : buf.getShort();
         releasedPages.clear();
+        pendingPages.clear();
+        freePages.clear();
+        firstReleased = maxPage + 1;
         for (int i = 0; i < releasedPagesCount; i++) {
-            releasedPages.add(buf.getLong());
+            releasePage(buf.getLong());
         }
+        changedPages.clear();
     }
 
     @Override
@@ -67,5 +313,25 @@ public class Freelist {
         Freelist freelist = (Freelist) o;
         return maxPage == freelist.maxPage && Objects.equals(releasedPages, freelist.releasedPages);
     }
-}
 
+    /**
+     * A growable list of page numbers that doesn't box them.
+     */
+    private static class Pages {
+        private long[] pages = new long[8];
+        private int size;
+
+        void add(long page) {
+            if (size == pages.length) {
+                pages = Arrays.copyOf(pages, size * 2);
+            }
+            pages[size++] = page;
+        }
+
+        void forEach(LongConsumer consumer) {
+            for (int i = 0; i < size; i++) {
+                consumer.accept(pages[i]);
+            }
+        }
+    }
+}
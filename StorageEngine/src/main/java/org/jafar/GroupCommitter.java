@@ -0,0 +1,138 @@
+package org.jafar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares one sync between concurrent committers. A committer registers once its pages are written, gets a ticket,
+ * releases its locks and then waits for the ticket to become durable. A background thread collects registrations
+ * until either the batch is full or the window since the first waiting commit has passed, and then syncs once for all
+ * of them.
+ */
+public class GroupCommitter implements Closeable {
+    public interface Sync {
+        void sync() throws IOException;
+    }
+
+    private final Sync sync;
+    private final long windowNanos;
+    private final int batchSize;
+    private final Thread flusher;
+
+    private long registered;
+    private long durable;
+    private IOException failure;
+    private boolean closed;
+
+    public GroupCommitter(Sync sync, long windowMicros, int batchSize) {
+        this.sync = sync;
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.batchSize = Math.max(1, batchSize);
+        this.flusher = new Thread(this::run, "jafardb-group-commit");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Registers a commit whose pages have all been written.
+     *
+     * @return the ticket to pass to {@link #awaitDurable(long)}
+     */
+    public synchronized long register() throws IOException {
+        if (failure != null) {
+            throw new IOException("an earlier group commit failed to sync", failure);
+        }
+        if (closed) {
+            throw new IOException("the group committer is closed");
+        }
+
+        registered++;
+        notifyAll();
+        return registered;
+    }
+
+    /**
+     * Blocks until the commit holding the ticket has been synced.
+     */
+    public synchronized void awaitDurable(long ticket) throws IOException {
+        while (durable < ticket) {
+            if (failure != null) {
+                throw new IOException("group commit failed to sync", failure);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for group commit");
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long target;
+            synchronized (this) {
+                try {
+                    while (!closed && registered == durable) {
+                        wait();
+                    }
+                    if (registered == durable) {
+                        return;
+                    }
+
+                    long deadline = System.nanoTime() + windowNanos;
+                    long remaining = windowNanos;
+                    while (!closed && registered - durable < batchSize && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        remaining = deadline - System.nanoTime();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                target = registered;
+            }
+
+            IOException error = null;
+            try {
+                sync.sync();
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                if (error != null) {
+                    // A failed sync leaves it unknown what reached the disk, so every later commit fails as well.
+                    failure = error;
+                    notifyAll();
+                    return;
+                }
+                durable = target;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Syncs whatever is still pending and stops the background thread.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while closing the group committer");
+        }
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("group commit failed to sync", failure);
+            }
+        }
+    }
+}
@@ -2,12 +2,32 @@ package org.jafar;
 
 import java.util.Arrays;
 
-public record Item(byte[] key, byte[] value) {
+/**
+ * A key and its value. A value too long to be kept in a node is stored in a chain of overflow pages, and the item in
+ * the node only holds the first page of the chain and the length of the value, its value is then empty until it's
+ * read with {@link Transaction#readValue(Item)}.
+ */
+public record Item(byte[] key, byte[] value, long overflowPage, int overflowLength) {
+    private static final byte[] NoValue = new byte[0];
+
+    public Item(byte[] key, byte[] value) {
+        this(key, value, 0, 0);
+    }
+
+    public static Item overflow(byte[] key, long overflowPage, int overflowLength) {
+        return new Item(key, NoValue, overflowPage, overflowLength);
+    }
+
+    public boolean isOverflow() {
+        return overflowPage != 0;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Item item = (Item) o;
-        return Arrays.equals(key, item.key) && Arrays.equals(value, item.value);
+        return Arrays.equals(key, item.key) && Arrays.equals(value, item.value) && overflowPage == item.overflowPage &&
+                overflowLength == item.overflowLength;
     }
 }
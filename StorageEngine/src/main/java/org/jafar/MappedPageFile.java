@@ -0,0 +1,88 @@
+package org.jafar;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Maps the database file into memory in fixed size segments. A segment is mapped the first time a page inside it is
+ * touched, which grows the file up to the end of that segment. Reads return slices of the mapping, so a page that is
+ * already in the OS page cache is served without a system call or a copy.
+ */
+public class MappedPageFile implements PageFile {
+    private final FileChannel channel;
+    private final int pageSize;
+    private final long segmentSize;
+    private final long pagesPerSegment;
+    // Copied on growth so readers can index into it without taking the lock.
+    private volatile MappedByteBuffer[] segments;
+
+    public MappedPageFile(String path, int pageSize, long segmentSize) throws IOException {
+        if (segmentSize < pageSize || segmentSize % pageSize != 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("mmap segment size must be a multiple of the page size and fit an int");
+        }
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.pageSize = pageSize;
+        this.segmentSize = segmentSize;
+        this.pagesPerSegment = segmentSize / pageSize;
+        this.segments = new MappedByteBuffer[0];
+    }
+
+    @Override
+    public Page readPage(long pageNum, PageArena arena) throws IOException {
+        return new Page(pageNum, slice(pageNum).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Override
+    public void writePage(long pageNum, ByteBuffer data) throws IOException {
+        slice(pageNum).put(0, data, 0, data.limit());
+    }
+
+    private ByteBuffer slice(long pageNum) throws IOException {
+        int segment = (int) (pageNum / pagesPerSegment);
+        int offset = (int) ((pageNum % pagesPerSegment) * pageSize);
+        return segment(segment).slice(offset, pageSize);
+    }
+
+    private MappedByteBuffer segment(int index) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+        return map(index);
+    }
+
+    private synchronized MappedByteBuffer map(int index) throws IOException {
+        MappedByteBuffer[] current = segments;
+        if (index < current.length && current[index] != null) {
+            return current[index];
+        }
+
+        MappedByteBuffer[] grown = Arrays.copyOf(current, Math.max(current.length, index + 1));
+        grown[index] = channel.map(FileChannel.MapMode.READ_WRITE, index * segmentSize, segmentSize);
+        segments = grown;
+        return grown[index];
+    }
+
+    @Override
+    public void sync() throws IOException {
+        for (MappedByteBuffer segment : segments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        // Mappings can't be released explicitly, they go away once the buffers are collected.
+        segments = new MappedByteBuffer[0];
+        channel.close();
+    }
+}
@@ -2,17 +2,56 @@ package org.jafar;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.zip.CRC32C;
 
 public class Meta {
     // The database has a root collection that holds all the collections in the database. It is called root and the
     // root property of meta holds page number containing the root of collections collection. The keys are the
     // collections names and the values are the page number of the root of each collection. Then, once the collection
     // and the root page are located, a search inside a collection can be made.
+    //
+    // Meta is written to one of two slots of the meta page, alternating between them on every commit, so the slot of
+    // the previous version stays intact while the next one is written. Each slot carries the id of the transaction that
+    // wrote it and a checksum, and on open the newest slot whose checksum matches wins.
+    //
+    // Files written before meta had slots hold a single meta at the start of the page, the magic number, the root and
+    // the freelist page, with the rest of the page zeroed. That's read as version 0 and transaction 0, whose pages are
+    // laid out like those of version 1, and the first commit writes a version 1 meta to the other slot. Until it's
+    // overwritten by the commit after, the old meta is written back the way it was.
+    //
+    // The format version says how the pages of the file are laid out. Version 1 slots are written the way they were
+    // before the version was recorded, ending with the checksum right after the transaction id. Version 2 slots add the
+    // version before the checksum, and from version 3 on it's followed by flags for the optional parts of the format.
+    // Version 5 adds the root of the reclaim queue after the flags.
     private long freelistPage;
     private long root;
+    private long txId;
+    private int formatVersion = FormatVersionPlain;
+    private int flags;
+    // The root of the tree of the pages of dropped collections that weren't released yet, 0 if there's none
+    private long reclaimRoot;
     public static final long MetaPageNum = 0;
     public static final int MagicNumber = 0xD00DB00D;
-
+    public static final int MetaSize = Constants.MagicNumberSize + 4 * Constants.PageNumSize + 4 + 4 + 4;
+    // The meta has no slots, transaction id or checksum, the pages are laid out like those of the plain format
+    public static final int FormatVersionLegacy = 0;
+    // Nodes store every key in full, item counts and offsets take 2 bytes and the freelist counts pages in 2 bytes
+    public static final int FormatVersionPlain = 1;
+    // Nodes may store the prefix their keys share once
+    public static final int FormatVersionPrefixCompression = 2;
+    // Item counts and offsets in nodes take 4 bytes and the freelist counts pages in 8 bytes, so pages can be larger
+    // than 64 KB and there can be more than 32K of them. Prefix compression is one of the flags.
+    public static final int FormatVersionWide = 3;
+    // The freelist is a bitmap over the pages kept in as many pages as it takes, listed in the page the meta points at,
+    // instead of a list of the free pages in that one page
+    public static final int FormatVersionFreelistBitmap = 4;
+    // Dropping a collection queues its root page in a tree the meta points at, whose pages are released in the
+    // background, see Reclaimer
+    public static final int FormatVersionReclaimQueue = 5;
+    public static final int LatestFormatVersion = FormatVersionReclaimQueue;
+    public static final int PrefixCompressionFlag = 1;
+    // Leaves too large for a page uncompressed are written compressed, only in the wide format
+    public static final int LeafCompressionFlag = 2;
 
     public Meta() {
         this.freelistPage = MetaPageNum;
@@ -23,25 +62,128 @@ public class Meta {
 
     public void setRoot(long root) { this.root = root; }
     public void setFreelistPage(long freelistPage) { this.freelistPage = freelistPage; }
+    public void setTxId(long txId) { this.txId = txId; }
+    public void setFormatVersion(int formatVersion) { this.formatVersion = formatVersion; }
+    public void setFlags(int flags) { this.flags = flags; }
+    public void setReclaimRoot(long reclaimRoot) { this.reclaimRoot = reclaimRoot; }
 
     public long getRoot() { return root; }
     public long getFreelistPage() { return freelistPage; }
+    public long getTxId() { return txId; }
+    public int getFormatVersion() { return formatVersion; }
+    public int getFlags() { return flags; }
+    public long getReclaimRoot() { return reclaimRoot; }
+
+    /**
+     * Whether nodes are written with the prefix their keys share stored once.
+     */
+    public boolean isPrefixCompression() {
+        return formatVersion == FormatVersionPrefixCompression ||
+                (formatVersion >= FormatVersionWide && (flags & PrefixCompressionFlag) != 0);
+    }
+
+    public boolean isLeafCompression() {
+        return formatVersion >= FormatVersionWide && (flags & LeafCompressionFlag) != 0;
+    }
+
+    public boolean isFreelistBitmap() {
+        return formatVersion >= FormatVersionFreelistBitmap;
+    }
+
+    public boolean isWide() {
+        return formatVersion >= FormatVersionWide;
+    }
+
+    public boolean isReclaimQueue() {
+        return formatVersion >= FormatVersionReclaimQueue;
+    }
+
+    /**
+     * Returns the offset of the slot this meta is written to inside the meta page.
+     */
+    public int slotOffset(int pageSize) {
+        return (int) (txId % 2) * (pageSize / 2);
+    }
 
     public void serialize(byte[] buff) {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(buff).order(ByteOrder.LITTLE_ENDIAN);
+        serialize(ByteBuffer.wrap(buff));
+    }
+
+    public void serialize(ByteBuffer buff) {
+        ByteBuffer byteBuffer = buff.duplicate().order(ByteOrder.LITTLE_ENDIAN);
         byteBuffer.putInt(MagicNumber);
         byteBuffer.putLong(root);
         byteBuffer.putLong(freelistPage);
+        if (formatVersion == FormatVersionLegacy) {
+            return;
+        }
+        byteBuffer.putLong(txId);
+        if (formatVersion != FormatVersionPlain) {
+            byteBuffer.putInt(formatVersion);
+        }
+        if (formatVersion >= FormatVersionWide) {
+            byteBuffer.putInt(flags);
+        }
+        if (formatVersion >= FormatVersionReclaimQueue) {
+            byteBuffer.putLong(reclaimRoot);
+        }
+        byteBuffer.putInt(checksum(byteBuffer, byteBuffer.position()));
     }
 
     public void deserialize(byte[] data) throws Constants.NotJafarDBFile {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        deserialize(ByteBuffer.wrap(data));
+    }
+
+    public void deserialize(ByteBuffer data) throws Constants.NotJafarDBFile {
+        ByteBuffer byteBuffer = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
         int magicNumberRes = byteBuffer.getInt();
         if (magicNumberRes != MagicNumber) {
             throw new Constants.NotJafarDBFile();
         }
         this.root = byteBuffer.getLong();
         this.freelistPage = byteBuffer.getLong();
+        if (isZeroed(byteBuffer)) {
+            this.txId = 0;
+            this.formatVersion = FormatVersionLegacy;
+            this.flags = 0;
+            this.reclaimRoot = 0;
+            return;
+        }
+        this.txId = byteBuffer.getLong();
+
+        // A slot whose write was torn doesn't hold a meta
+        int position = byteBuffer.position();
+        if (byteBuffer.getInt(position) == checksum(byteBuffer, position)) {
+            this.formatVersion = FormatVersionPlain;
+            this.flags = 0;
+            return;
+        }
+
+        this.formatVersion = byteBuffer.getInt();
+        this.flags = formatVersion >= FormatVersionWide ? byteBuffer.getInt() : 0;
+        this.reclaimRoot = formatVersion >= FormatVersionReclaimQueue ? byteBuffer.getLong() : 0;
+        position = byteBuffer.position();
+        if (byteBuffer.getInt(position) != checksum(byteBuffer, position)) {
+            throw new Constants.NotJafarDBFile();
+        }
+    }
+
+    /**
+     * Whether the rest of the slot is zeroed, which it practically never is after a transaction id and checksum.
+     */
+    private static boolean isZeroed(ByteBuffer rest) {
+        for (int i = rest.position(); i < rest.limit(); i++) {
+            if (rest.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int checksum(ByteBuffer meta, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(meta.duplicate().position(0).limit(length));
+        return (int) crc.getValue();
     }
 
     @Override
@@ -49,6 +191,7 @@ public class Meta {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Meta meta = (Meta) o;
-        return freelistPage == meta.freelistPage && root == meta.root;
+        return freelistPage == meta.freelistPage && root == meta.root && txId == meta.txId &&
+                formatVersion == meta.formatVersion && flags == meta.flags && reclaimRoot == meta.reclaimRoot;
     }
 }
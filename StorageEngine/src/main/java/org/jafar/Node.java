@@ -6,10 +6,26 @@ import java.nio.ByteOrder;
 import java.util.*;
 
 public class Node {
+    // Bits of the first byte of a page
+    static final int LeafFlag = 1;
+    static final int PrefixFlag = 2;
+    // Some values of the node are in overflow pages, every value is then marked with whether it's inline
+    static final int OverflowFlag = 4;
+    private static final byte InlineValue = 0;
+    private static final byte OverflowValue = 1;
+    // The item count and the offsets take 4 bytes
+    static final int WideFlag = 8;
+    // The page holds a compressed node, see DAL
+    static final int CompressedFlag = 16;
+    // Length of the value and its first overflow page
+    static final int OverflowRefSize = 4 + Constants.PageNumSize;
+
     private long pageNum;
     private List<Item> items;
     private List<Long> childNodes;
     private Transaction transaction;
+    // What the node was when it was last compressed, see DAL#room
+    private DAL.Compressed compressed;
 
     public Node() {
         this.items = new ArrayList<>();
@@ -29,6 +45,25 @@ public class Node {
         this.childNodes = childNodes;
     }
 
+    /**
+     * Returns a copy of the node that shares the items but not the lists holding them, so either one can be changed
+     * without affecting the other. The copy isn't attached to a transaction.
+     */
+    public Node copy() {
+        Node node = new Node(new ArrayList<>(items), new ArrayList<>(childNodes));
+        node.setPageNum(pageNum);
+        node.compressed = compressed;
+        return node;
+    }
+
+    DAL.Compressed getCompressed() {
+        return compressed;
+    }
+
+    void setCompressed(DAL.Compressed compressed) {
+        this.compressed = compressed;
+    }
+
     public void setPageNum(long pageNum) {
         this.pageNum = pageNum;
     }
@@ -42,59 +77,111 @@ public class Node {
     }
 
     public void serialize(byte[] buf) {
+        serialize(ByteBuffer.wrap(buf));
+    }
+
+    public void serialize(ByteBuffer buf) {
+        serialize(buf, false, false);
+    }
+
+    /**
+     * Writes the node to the page. With prefix compression the prefix all of its keys share is stored once after the
+     * header, and only the rest of every key is stored with its value. Wide nodes store the item count and the offsets
+     * in 4 bytes instead of 2, for pages larger than 64 KB.
+     */
+    public void serialize(ByteBuffer buf, boolean prefixCompression, boolean wide) {
+        buf = buf.order(ByteOrder.LITTLE_ENDIAN);
         int leftPos = 0;
-        int rightPos = buf.length - 1;
+        int rightPos = buf.limit() - 1;
 
         boolean isLeaf = isLeaf();
+        int prefixLength = prefixCompression ? commonPrefixLength() : 0;
+        boolean hasOverflow = hasOverflow();
 
-        buf[leftPos] = (byte) (isLeaf ? 1 : 0);
+        buf.put(leftPos, (byte) ((isLeaf ? LeafFlag : 0) | (prefixLength > 0 ? PrefixFlag : 0) |
+                (hasOverflow ? OverflowFlag : 0) | (wide ? WideFlag : 0)));
         leftPos++;
 
-        ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).putShort(leftPos, (short) items.size());
-        leftPos += 2;
+        if (wide) {
+            buf.putInt(leftPos, items.size());
+        } else {
+            buf.putShort(leftPos, (short) items.size());
+        }
+        leftPos += countSize(wide);
+
+        if (prefixLength > 0) {
+            buf.put(leftPos, (byte) prefixLength);
+            leftPos++;
+            buf.put(leftPos, items.get(0).key(), 0, prefixLength);
+            leftPos += prefixLength;
+        }
 
         for (int i = 0; i < items.size(); i++) {
             Item item = items.get(i);
             if (!isLeaf) {
                 long childNode = childNodes.get(i);
-                ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).putLong(leftPos, childNode);
+                buf.putLong(leftPos, childNode);
                 leftPos += 8; // assuming pageNumSize is 8 (long)
             }
 
-            int keyLength = item.key().length;
-            int valueLength = item.value().length;
-
-            int offset = rightPos - keyLength - valueLength - 2;
-            ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).putShort(leftPos, (short) offset);
-            leftPos += 2;
+            int keyLength = item.key().length - prefixLength;
 
-            rightPos -= valueLength;
-            System.arraycopy(item.value(), 0, buf, rightPos, valueLength);
-
-            rightPos--;
-            buf[rightPos] = (byte) valueLength;
+            int offset = rightPos - keyLength - storedValueSize(item, hasOverflow) - 1;
+            if (wide) {
+                buf.putInt(leftPos, offset);
+            } else {
+                buf.putShort(leftPos, (short) offset);
+            }
+            leftPos += countSize(wide);
+            rightPos = offset;
 
-            rightPos -= keyLength;
-            System.arraycopy(item.key(), 0, buf, rightPos, keyLength);
+            buf.put(offset, (byte) keyLength);
+            offset++;
+            buf.put(offset, item.key(), prefixLength, keyLength);
+            offset += keyLength;
 
-            rightPos--;
-            buf[rightPos] = (byte) keyLength;
+            if (hasOverflow) {
+                buf.put(offset, item.isOverflow() ? OverflowValue : InlineValue);
+                offset++;
+            }
+            if (item.isOverflow()) {
+                buf.putInt(offset, item.overflowLength());
+                buf.putLong(offset + 4, item.overflowPage());
+            } else {
+                buf.put(offset, (byte) item.value().length);
+                buf.put(offset + 1, item.value(), 0, item.value().length);
+            }
         }
 
         if (!isLeaf) {
             long lastChildNode = childNodes.get(childNodes.size() - 1);
-            ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).putLong(leftPos, lastChildNode);
+            buf.putLong(leftPos, lastChildNode);
         }
     }
 
     public void deserialize(byte[] buf) {
+        deserialize(ByteBuffer.wrap(buf));
+    }
+
+    public void deserialize(ByteBuffer buf) {
+        buf = buf.order(ByteOrder.LITTLE_ENDIAN);
         int leftPos = 0;
 
         // Read header
-        boolean isLeaf = (buf[0] & 0xFF) == 1;
-
-        short itemsCount = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).getShort(1);
-        leftPos += 3;
+        int flags = buf.get(0) & 0xFF;
+        boolean isLeaf = (flags & LeafFlag) != 0;
+        boolean wide = (flags & WideFlag) != 0;
+
+        int itemsCount = wide ? buf.getInt(1) : buf.getShort(1) & 0xFFFF;
+        leftPos += 1 + countSize(wide);
+
+        int prefixLength = 0;
+        int prefixPos = 0;
+        if ((flags & PrefixFlag) != 0) {
+            prefixLength = buf.get(leftPos) & 0xFF;
+            prefixPos = leftPos + 1;
+            leftPos += 1 + prefixLength;
+        }
 
         if (!isLeaf) {
             childNodes = new ArrayList<>();
@@ -105,37 +192,89 @@ public class Node {
         // Read body
         for (int i = 0; i < itemsCount; i++) {
             if (!isLeaf) {
-                long pageNum = ByteBuffer.wrap(buf, leftPos, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                long pageNum = buf.getLong(leftPos);
                 leftPos += 8;
 
                 childNodes.add(pageNum);
             }
 
             // Read offset
-            int offset = ByteBuffer.wrap(buf, leftPos, 2).order(ByteOrder.LITTLE_ENDIAN).getShort() & 0xFFFF;
-            leftPos += 2;
+            int offset = wide ? buf.getInt(leftPos) : buf.getShort(leftPos) & 0xFFFF;
+            leftPos += countSize(wide);
 
-            int keyLength = buf[offset] & 0xFF;
-            offset++;
+            items.add(readItem(buf, offset, prefixPos, prefixLength, (flags & OverflowFlag) != 0));
+        }
 
-            byte[] key = new byte[keyLength];
-            System.arraycopy(buf, offset, key, 0, keyLength);
-            offset += keyLength;
+        if (!isLeaf) {
+            long lastChildNode = buf.getLong(leftPos);
+            childNodes.add(lastChildNode);
+        }
+    }
+
+    /**
+     * Returns the size of the item count and of every offset in a page.
+     */
+    static int countSize(boolean wide) {
+        return wide ? 4 : 2;
+    }
 
-            int valueLength = buf[offset] & 0xFF;
+    /**
+     * Reads the item whose key starts at the offset in the page.
+     */
+    static Item readItem(ByteBuffer buf, int offset, int prefixPos, int prefixLength, boolean hasOverflow) {
+        int keyLength = buf.get(offset) & 0xFF;
+        offset++;
+
+        byte[] key = new byte[prefixLength + keyLength];
+        buf.get(prefixPos, key, 0, prefixLength);
+        buf.get(offset, key, prefixLength, keyLength);
+        offset += keyLength;
+
+        if (hasOverflow) {
+            byte kind = buf.get(offset);
             offset++;
+            if (kind == OverflowValue) {
+                return Item.overflow(key, buf.getLong(offset + 4), buf.getInt(offset));
+            }
+        }
+
+        int valueLength = buf.get(offset) & 0xFF;
+        offset++;
+
+        byte[] value = new byte[valueLength];
+        buf.get(offset, value);
+        return new Item(key, value);
+    }
 
-            byte[] value = new byte[valueLength];
-            System.arraycopy(buf, offset, value, 0, valueLength);
-            offset += valueLength;
+    /**
+     * Returns how many bytes the value of the item takes up after its key in the page.
+     */
+    private static int storedValueSize(Item item, boolean hasOverflow) {
+        int size = item.isOverflow() ? OverflowRefSize : 1 + item.value().length;
+        return hasOverflow ? size + 1 : size;
+    }
 
-            items.add(new Item(key, value));
+    private boolean hasOverflow() {
+        for (Item item : items) {
+            if (item.isOverflow()) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        if (!isLeaf) {
-            long lastChildNode = ByteBuffer.wrap(buf, leftPos, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
-            childNodes.add(lastChildNode);
+    /**
+     * Returns the length of the prefix all the keys of the node share. The keys are sorted, so that's the prefix the
+     * first and the last one share.
+     */
+    public int commonPrefixLength() {
+        if (items.size() < 2) {
+            return 0;
         }
+        byte[] first = items.get(0).key();
+        byte[] last = items.get(items.size() - 1).key();
+        int mismatch = Arrays.mismatch(first, last);
+        return mismatch == -1 ? first.length : mismatch;
     }
 
     public Node writeNode(Node node) throws IOException {
@@ -149,32 +288,33 @@ public class Node {
     }
 
     public Node getNode(long pageNum) throws IOException {
-        return this.transaction.getNode(pageNum);
+        return this.transaction.getNode(this, pageNum);
     }
 
     /**
-     * Finds the key in the node.
+     * Binary searches the node for the key.
      *
      * @param key the key to search for
-     * @return a boolean indicating whether the key is present, and an index (either of the key, or where it should be)
+     * @return the index of the key if it's in the node, otherwise (-(the index it should be at) - 1), the same way
+     * {@link Arrays#binarySearch} encodes it
      */
-    public Pair<Boolean, Integer> findKeyInNode(byte[] key) {
-        for (int i = 0; i < items.size(); i++) {
-            Item existingItem = items.get(i);
-            int res = compare(existingItem.key(), key);
-
-            if (res == 0) {
-                return new Pair<>(true, i);
-            }
-
-            // The key is bigger than the previous key, so it doesn't exist in the node, but may exist in child nodes.
-            if (res > 0) {
-                return new Pair<>(false, i);
+    public int findKeyInNode(byte[] key) {
+        int low = 0;
+        int high = items.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int res = compare(items.get(mid).key(), key);
+            if (res < 0) {
+                low = mid + 1;
+            } else if (res > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
             }
         }
 
-        // The key isn't bigger than any of the keys which means it's in the last index.
-        return new Pair<>(false, items.size());
+        // The key isn't in the node, but may be in the child nodes left of where it should be
+        return -(low + 1);
     }
 
     /**
@@ -204,8 +344,6 @@ public class Node {
         return childNodes;
     }
 
-    public record Pair<K, V>(K key, V value) {}
-
     public FindResult findKey(byte[] key, boolean exact) throws IOException {
         List<Integer> ancestorIndexes = new ArrayList<>();
         ancestorIndexes.add(0);  // index of root
@@ -224,32 +362,47 @@ public class Node {
         }
     }
 
+    /**
+     * Walks down from the node to the one holding the key, or the leaf it belongs in. The nodes on the way are only
+     * searched through a {@link NodeView}, the one the walk ends at is the only one returned as a node.
+     */
     private FindResult findKeyHelper(Node node, byte[] key, boolean exact, List<Integer> ancestorsIndexes) throws IOException {
-        Pair<Boolean, Integer> searchResult = node.findKeyInNode(key);
-        Boolean wasFound = searchResult.key;
-        int index = searchResult.value;
-
-        if (wasFound) {
-            return new FindResult(index, node, ancestorsIndexes);
-        }
-
-        if (node.isLeaf()) {
-            if (exact) {
-                return null;
+        try (NodeView view = new NodeView()) {
+            view.wrap(node);
+            long parentPageNum = 0;
+            long pageNum = node.getPageNum();
+            while (true) {
+                int index = view.search(key);
+                boolean wasFound = index >= 0;
+                if (!wasFound) {
+                    index = -index - 1;
+                }
+
+                if (wasFound || view.isLeaf()) {
+                    if (!wasFound && exact) {
+                        return null;
+                    }
+                    if (node == null) {
+                        node = transaction.getNode(parentPageNum, pageNum);
+                    }
+                    return new FindResult(index, node, ancestorsIndexes);
+                }
+
+                ancestorsIndexes.add(index);
+                node = null;
+                parentPageNum = pageNum;
+                pageNum = view.childNode(index);
+                transaction.viewNode(pageNum, view);
             }
-            return new FindResult(index, node, ancestorsIndexes);
         }
-
-        ancestorsIndexes.add(index);
-        Node nextChild = node.getNode(node.childNodes.get(index));
-        return findKeyHelper(nextChild, key, exact, ancestorsIndexes);
     }
 
 
     public int elementSize(int i) {
         int size = 0;
-        size += items.get(i).key().length;
-        size += items.get(i).value().length;
+        Item item = items.get(i);
+        size += item.key().length;
+        size += item.isOverflow() ? OverflowRefSize + 1 : item.value().length;
         size += Constants.PageNumSize;
 
         return size;
@@ -268,6 +421,32 @@ public class Node {
         return size;
     }
 
+    /**
+     * Size of the node stored with the given prefix of its keys taken out, in a page of the given width. Unlike
+     * {@link #nodeSize()} it counts the offset and the length bytes of every item too, which matter once what's left
+     * of the keys is short.
+     */
+    public int nodeSize(int prefixLength, boolean wide) {
+        int size = headerSize(prefixLength, wide);
+
+        for (int i = 0; i < items.size(); i++) {
+            size += elementSize(i, prefixLength, wide);
+        }
+
+        // Add last page
+        size += Constants.PageNumSize;
+        return size;
+    }
+
+    public int headerSize(int prefixLength, boolean wide) {
+        return 1 + countSize(wide) + (prefixLength > 0 ? 1 + prefixLength : 0);
+    }
+
+    public int elementSize(int i, int prefixLength, boolean wide) {
+        // The offset, the key's length and the value's length, and whether the value is inline
+        return elementSize(i) - prefixLength + countSize(wide) + 3;
+    }
+
     public int addItem(Item item, int insertionIndex) {
         items.add(insertionIndex, item);
         return insertionIndex;
@@ -282,7 +461,16 @@ public class Node {
     }
 
     public void split(Node nodeToSplit, int nodeToSplitIndex) throws IOException {
-        int splitIndex = nodeToSplit.transaction.getDb().getDal().getSplitIndex(nodeToSplit);
+        split(nodeToSplit, nodeToSplitIndex, false);
+    }
+
+    /**
+     * Splits the child in two. A child on the right edge of the tree keeps as many items as fit in it, see
+     * {@link DAL#getRightEdgeSplitIndex(Node)}, otherwise the child keeps just over the min fill percent.
+     */
+    public void split(Node nodeToSplit, int nodeToSplitIndex, boolean rightEdge) throws IOException {
+        DAL dal = nodeToSplit.transaction.getDb().getDal();
+        int splitIndex = rightEdge ? dal.getRightEdgeSplitIndex(nodeToSplit) : dal.getSplitIndex(nodeToSplit);
 
         Item middleItem = nodeToSplit.getItems().get(splitIndex);
         Node newNode;
@@ -306,6 +494,55 @@ public class Node {
         }
 
         writeNodes(this, nodeToSplit);
+
+        // The keys of a prefix compressed node that no longer share a prefix can take up more than twice the page, the
+        // new node then has to be split again
+        splitIfOverPopulated(newNode, nodeToSplitIndex + 1);
+    }
+
+    /**
+     * Splits a child that can be many times too large for a page into as many nodes as it takes, all at once, where
+     * {@link #split(Node, int)} splits off one node at a time and copies the rest of the items every time.
+     */
+    public void splitAll(Node nodeToSplit, int nodeToSplitIndex) throws IOException {
+        List<Integer> splitIndexes = transaction.getDb().getDal().getSplitIndexes(nodeToSplit);
+        List<Item> allItems = nodeToSplit.getItems();
+        List<Long> allChildNodes = nodeToSplit.getChildNodes();
+
+        List<Item> separators = new ArrayList<>();
+        List<Long> newNodes = new ArrayList<>();
+        int from = 0;
+        for (int i = 0; i <= splitIndexes.size(); i++) {
+            int to = i < splitIndexes.size() ? splitIndexes.get(i) : allItems.size();
+            List<Item> partItems = new ArrayList<>(allItems.subList(from, to));
+            List<Long> partChildNodes = nodeToSplit.isLeaf() ? new ArrayList<>() :
+                    new ArrayList<>(allChildNodes.subList(from, to + 1));
+
+            if (i == 0) {
+                nodeToSplit.setItems(partItems);
+                nodeToSplit.setChildNodes(partChildNodes);
+            } else {
+                newNodes.add(writeNode(transaction.newNode(partItems, partChildNodes)).getPageNum());
+            }
+            if (i < splitIndexes.size()) {
+                separators.add(allItems.get(to));
+                from = to + 1;
+            }
+        }
+
+        items.addAll(nodeToSplitIndex, separators);
+        childNodes.addAll(nodeToSplitIndex + 1, newNodes);
+        writeNodes(this, nodeToSplit);
+    }
+
+    /**
+     * Splits the child if it doesn't fit its page. Moving items into a prefix compressed node can shorten the prefix
+     * its keys share, and so grow it by more than the items that were moved.
+     */
+    private void splitIfOverPopulated(Node child, int childIndex) throws IOException {
+        if (child.isOverPopulated()) {
+            split(child, childIndex);
+        }
     }
 
     public static class FindResult {
@@ -423,7 +660,8 @@ public class Node {
 
         // Write the nodes, delete bNode from persistent storage
         writeNodes(leftNode, this);
-        transaction.getDb().getDal().deleteNode(node.pageNum);
+        transaction.deleteNode(node);
+        splitIfOverPopulated(leftNode, nodeIndex - 1);
     }
 
     public void rebalanceRemove(Node unbalancedNode, int unbalancedNodeIndex) throws IOException {
@@ -435,6 +673,7 @@ public class Node {
             if (leftNode.canSpareAnElement()) {
                 rotateRight(leftNode, parentNode, unbalancedNode, unbalancedNodeIndex);
                 writeNodes(leftNode, parentNode, unbalancedNode);
+                splitIfOverPopulated(unbalancedNode, unbalancedNodeIndex);
                 return;
             }
         }
@@ -445,6 +684,7 @@ public class Node {
             if (rightNode.canSpareAnElement()) {
                 rotateLeft(unbalancedNode, parentNode, rightNode, unbalancedNodeIndex);
                 writeNodes(unbalancedNode, parentNode, rightNode);
+                splitIfOverPopulated(unbalancedNode, unbalancedNodeIndex);
                 return;
             }
         }
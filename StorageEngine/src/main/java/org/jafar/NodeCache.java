@@ -0,0 +1,115 @@
+package org.jafar;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded cache of decoded nodes keyed by page number, shared by all the transactions of a DB. Eviction uses the
+ * CLOCK algorithm: every slot has a reference bit that is set on a hit, and the hand clears bits until it finds a slot
+ * that wasn't used since its last pass.
+ * Lookups don't take a lock, they only set the reference bit of the entry they find. Putting and dropping pages moves
+ * the hand and hands out slots, so those take the lock of the cache.
+ * Cached nodes must never be changed, callers get a {@link Node#copy()} of them from the DAL.
+ */
+public class NodeCache {
+    private final int capacity;
+    private final ConcurrentHashMap<Long, Entry> entries;
+    // The entry in every slot of the clock, guarded by the lock of the cache like the hand
+    private final Entry[] slots;
+    private int hand;
+    private int used;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final class Entry {
+        final Node node;
+        final int slot;
+        volatile boolean referenced;
+
+        Entry(Node node, int slot) {
+            this.node = node;
+            this.slot = slot;
+        }
+    }
+
+    public NodeCache(int capacity) {
+        this.capacity = capacity;
+        this.entries = new ConcurrentHashMap<>(Math.max(16, capacity * 4 / 3 + 1));
+        this.slots = new Entry[capacity];
+    }
+
+    public long getHits() { return hits.sum(); }
+    public long getMisses() { return misses.sum(); }
+    public int getCapacity() { return capacity; }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the cached node for the page, or null if it isn't cached
+     */
+    public Node get(long pageNum) {
+        Entry entry = entries.get(pageNum);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        // Only written when it changes, so hits on the same node don't keep writing its cache line
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry.node;
+    }
+
+    public synchronized void put(Node node) {
+        if (capacity == 0) {
+            return;
+        }
+
+        Entry cached = entries.get(node.getPageNum());
+        int slot;
+        if (cached != null) {
+            slot = cached.slot;
+        } else {
+            slot = used < capacity ? used++ : evict();
+        }
+
+        Entry entry = new Entry(node, slot);
+        slots[slot] = entry;
+        entries.put(node.getPageNum(), entry);
+    }
+
+    /**
+     * Drops the page from the cache. Has to be called whenever the page is written or released.
+     */
+    public synchronized void invalidate(long pageNum) {
+        Entry entry = entries.remove(pageNum);
+        if (entry != null) {
+            slots[entry.slot] = null;
+        }
+    }
+
+    private int evict() {
+        while (true) {
+            int slot = hand;
+            hand = (hand + 1) % capacity;
+
+            Entry entry = slots[slot];
+            if (entry == null) {
+                return slot;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                continue;
+            }
+
+            entries.remove(entry.node.getPageNum());
+            slots[slot] = null;
+            return slot;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.jafar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A read-only look at a node for lookups, that searches its keys without decoding it. The view is either over the
+ * page the node is stored in, going through the offsets {@link Node#serialize(ByteBuffer, boolean, boolean)} writes
+ * for every item, or over a node that is already decoded, such as a cached one, which is then searched in place
+ * instead of copied.
+ * Only the item a lookup asks for is copied out of a page.
+ * A view holds on to the page it's over until it's pointed at another node or closed, and can be reused for every
+ * node on the way down a tree.
+ */
+public class NodeView implements AutoCloseable {
+    private Page page;
+    private ByteBuffer buf;
+    private Node node;
+    private boolean leaf;
+    private boolean overflow;
+    private boolean wide;
+    private int size;
+    // Where the prefix the keys share is in the page, and where the items start after it
+    private int prefixPos;
+    private int prefixLength;
+    private int bodyPos;
+
+    NodeView wrap(Page page) {
+        close();
+        this.page = page;
+        this.buf = page.getData().order(ByteOrder.LITTLE_ENDIAN);
+        int flags = buf.get(0) & 0xFF;
+        this.leaf = (flags & Node.LeafFlag) != 0;
+        this.overflow = (flags & Node.OverflowFlag) != 0;
+        this.wide = (flags & Node.WideFlag) != 0;
+        this.size = wide ? buf.getInt(1) : buf.getShort(1) & 0xFFFF;
+        int headerSize = 1 + Node.countSize(wide);
+        this.prefixLength = (flags & Node.PrefixFlag) != 0 ? buf.get(headerSize) & 0xFF : 0;
+        this.prefixPos = headerSize + 1;
+        this.bodyPos = headerSize + (prefixLength > 0 ? 1 + prefixLength : 0);
+        return this;
+    }
+
+    NodeView wrap(Node node) {
+        close();
+        this.node = node;
+        this.leaf = node.isLeaf();
+        this.size = node.getItems().size();
+        this.prefixLength = 0;
+        return this;
+    }
+
+    public boolean isLeaf() {
+        return leaf;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Binary searches the node for the key.
+     *
+     * @return the same as {@link Node#findKeyInNode(byte[])}
+     */
+    public int search(byte[] key) {
+        if (node != null) {
+            return node.findKeyInNode(key);
+        }
+
+        // A key without the prefix is either before or after all of the keys in the node
+        int length = Math.min(prefixLength, key.length);
+        for (int j = 0; j < length; j++) {
+            int res = Integer.compare(buf.get(prefixPos + j) & 0xFF, key[j] & 0xFF);
+            if (res != 0) {
+                return res > 0 ? -1 : -(size + 1);
+            }
+        }
+        if (key.length < prefixLength) {
+            return -1;
+        }
+
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int res = compareKey(mid, key);
+            if (res < 0) {
+                low = mid + 1;
+            } else if (res > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    public long childNode(int i) {
+        if (node != null) {
+            return node.getChildNodes().get(i);
+        }
+        // The child before every item, and the last child after all of them
+        return buf.getLong(bodyPos + i * (Constants.PageNumSize + Node.countSize(wide)));
+    }
+
+    public Item item(int i) {
+        if (node != null) {
+            return node.getItems().get(i);
+        }
+
+        return Node.readItem(buf, itemOffset(i), prefixPos, prefixLength, overflow);
+    }
+
+    /**
+     * Compares the key of the item at the index in the page with the given key, the same way
+     * {@link Arrays#compareUnsigned} does. The given key has to start with the prefix the keys share, only what comes
+     * after it is compared.
+     */
+    private int compareKey(int i, byte[] key) {
+        int offset = itemOffset(i);
+        int keyLength = buf.get(offset) & 0xFF;
+        offset++;
+        int length = Math.min(keyLength, key.length - prefixLength);
+        for (int j = 0; j < length; j++) {
+            int res = Integer.compare(buf.get(offset + j) & 0xFF, key[prefixLength + j] & 0xFF);
+            if (res != 0) {
+                return res;
+            }
+        }
+        return keyLength - (key.length - prefixLength);
+    }
+
+    private int itemOffset(int i) {
+        int pos = bodyPos + i * Node.countSize(wide);
+        if (!leaf) {
+            pos += (i + 1) * Constants.PageNumSize;
+        }
+        return wide ? buf.getInt(pos) : buf.getShort(pos) & 0xFFFF;
+    }
+
+    /**
+     * Releases the page the view is over, if it's over one.
+     */
+    @Override
+    public void close() {
+        if (page != null) {
+            page.release();
+        }
+        page = null;
+        buf = null;
+        node = null;
+    }
+}
@@ -1,9 +1,62 @@
 package org.jafar;
 
 public class Options {
+    // How the DAL talks to the database file. FILE_CHANNEL copies every page into a buffer with a positional read,
+    // MEMORY_MAPPED maps the file in segments and hands out pages as slices of the mapping.
+    public enum IOMode { FILE_CHANNEL, MEMORY_MAPPED }
+
+    // What a write transaction's commit waits for. NONE leaves flushing to the OS, SYNC forces the file on every
+    // commit and GROUP lets concurrent commits share a single force (see GroupCommitter). Without the write-ahead log
+    // SYNC also forces the pages of a commit before its meta is written, which is what a crash needs to find them.
+    // GROUP only shares the force of the log, so it needs the write-ahead log.
+    public enum Durability { NONE, SYNC, GROUP }
+
+    // Pages can be up to 1 MB. Pages over 64 KB need the wide format, which is what new files are created in.
     private int pageSize = 16384;
     private float minFillPercent = 0.5F;
     private float maxFillPercent = 0.95F;
+    private IOMode ioMode = IOMode.FILE_CHANNEL;
+    private long mmapSegmentSize = 64L * 1024 * 1024;
+    // With FILE_CHANNEL the file grows ahead of the pages written past its end, by as much as it already takes up to
+    // this size at a time. The page size grows it one page at a time. MEMORY_MAPPED grows it a segment at a time.
+    private long fileGrowthSize = 64L * 1024 * 1024;
+    // Number of decoded nodes kept in the DAL's node cache, 0 disables it.
+    private int nodeCacheSize = 1024;
+    // Number of pages in the DAL's off-heap buffer arena used for reads and writes.
+    private int pageArenaSize = 64;
+    private Durability durability = Durability.NONE;
+    // A group commit syncs once this many commits are waiting, or once the window has passed since the first one.
+    private long groupCommitWindowMicros = 2000;
+    private int groupCommitBatchSize = 64;
+    // Commits append to a write-ahead log next to the database file instead of writing pages in place. The log is
+    // checkpointed in the background once it holds this many frames.
+    private boolean writeAheadLog = false;
+    private int walCheckpointFrames = 1024;
+    // Number of read transactions that can be open at once, more readers wait for one of them to finish.
+    private int maxReadTransactions = 128;
+    // Full scans in read transactions keep reads of this many of the next pages in flight, on a pool of prefetch
+    // threads. 0 reads one page at a time.
+    private int scanReadAhead = 16;
+    private int prefetchThreads = 4;
+    // New database files are created in the format that stores the prefix the keys of a node share once, so more keys
+    // fit in a page when they have long prefixes in common. Files keep the format they were created with.
+    private boolean prefixCompression = false;
+    // Values longer than this are stored in a chain of overflow pages, and the node only keeps a reference to them.
+    // Nodes store lengths in a byte, so it can't be more than 255.
+    private int maxInlineValueSize = 255;
+    // New database files are created in the format that lets a leaf hold more items than fit in a page when they
+    // compress into it, so values that compress well take fewer pages. Costs compressing the leaf on writes that may
+    // have filled it, and decompressing it on reads.
+    private boolean leafCompression = false;
+    // Collection.bulkLoad fills nodes to this fraction of the max fill percent, so later inserts have room before they
+    // split them. It should keep nodes above the min fill percent.
+    private float bulkLoadFillFactor = 0.9F;
+    // A node on the right edge of a tree that's split because a key after all the others was put, keeps as many items
+    // as fit in it instead of half of them. Keys that keep increasing then leave full nodes behind them.
+    private boolean rightEdgeSplit = false;
+    // The pages of dropped collections are released in the background by write transactions that release up to this
+    // many pages each, see Reclaimer. 0 leaves them queued until DB.reclaim() is called.
+    private int reclaimBatchPages = 64;
 
     public int getPageSize() {
         return pageSize;
@@ -14,8 +67,84 @@ public class Options {
     public float getMaxFillPercent() {
         return maxFillPercent;
     }
+    public IOMode getIOMode() {
+        return ioMode;
+    }
+    public long getMmapSegmentSize() {
+        return mmapSegmentSize;
+    }
+    public long getFileGrowthSize() {
+        return fileGrowthSize;
+    }
+    public int getNodeCacheSize() {
+        return nodeCacheSize;
+    }
+    public int getPageArenaSize() {
+        return pageArenaSize;
+    }
+    public Durability getDurability() {
+        return durability;
+    }
+    public long getGroupCommitWindowMicros() {
+        return groupCommitWindowMicros;
+    }
+    public int getGroupCommitBatchSize() {
+        return groupCommitBatchSize;
+    }
+    public boolean isWriteAheadLog() {
+        return writeAheadLog;
+    }
+    public int getWalCheckpointFrames() {
+        return walCheckpointFrames;
+    }
+    public int getMaxReadTransactions() {
+        return maxReadTransactions;
+    }
+    public int getScanReadAhead() {
+        return scanReadAhead;
+    }
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+    public boolean isPrefixCompression() {
+        return prefixCompression;
+    }
+    public int getMaxInlineValueSize() {
+        return maxInlineValueSize;
+    }
+    public boolean isLeafCompression() {
+        return leafCompression;
+    }
+    public float getBulkLoadFillFactor() {
+        return bulkLoadFillFactor;
+    }
+    public boolean isRightEdgeSplit() {
+        return rightEdgeSplit;
+    }
+    public int getReclaimBatchPages() {
+        return reclaimBatchPages;
+    }
 
     public void setPageSize(int pageSize) { this.pageSize = pageSize; }
+    public void setIOMode(IOMode ioMode) { this.ioMode = ioMode; }
+    public void setMmapSegmentSize(long mmapSegmentSize) { this.mmapSegmentSize = mmapSegmentSize; }
+    public void setFileGrowthSize(long fileGrowthSize) { this.fileGrowthSize = fileGrowthSize; }
+    public void setNodeCacheSize(int nodeCacheSize) { this.nodeCacheSize = nodeCacheSize; }
+    public void setPageArenaSize(int pageArenaSize) { this.pageArenaSize = pageArenaSize; }
+    public void setDurability(Durability durability) { this.durability = durability; }
+    public void setGroupCommitWindowMicros(long groupCommitWindowMicros) { this.groupCommitWindowMicros = groupCommitWindowMicros; }
+    public void setGroupCommitBatchSize(int groupCommitBatchSize) { this.groupCommitBatchSize = groupCommitBatchSize; }
+    public void setWriteAheadLog(boolean writeAheadLog) { this.writeAheadLog = writeAheadLog; }
+    public void setWalCheckpointFrames(int walCheckpointFrames) { this.walCheckpointFrames = walCheckpointFrames; }
+    public void setMaxReadTransactions(int maxReadTransactions) { this.maxReadTransactions = maxReadTransactions; }
+    public void setScanReadAhead(int scanReadAhead) { this.scanReadAhead = scanReadAhead; }
+    public void setPrefetchThreads(int prefetchThreads) { this.prefetchThreads = prefetchThreads; }
+    public void setPrefixCompression(boolean prefixCompression) { this.prefixCompression = prefixCompression; }
+    public void setMaxInlineValueSize(int maxInlineValueSize) { this.maxInlineValueSize = maxInlineValueSize; }
+    public void setLeafCompression(boolean leafCompression) { this.leafCompression = leafCompression; }
+    public void setBulkLoadFillFactor(float bulkLoadFillFactor) { this.bulkLoadFillFactor = bulkLoadFillFactor; }
+    public void setRightEdgeSplit(boolean rightEdgeSplit) { this.rightEdgeSplit = rightEdgeSplit; }
+    public void setReclaimBatchPages(int reclaimBatchPages) { this.reclaimBatchPages = reclaimBatchPages; }
 
     public Options() {}
 
@@ -1,23 +1,44 @@
 package org.jafar;
 
-public class Page {
+import java.nio.ByteBuffer;
+
+public class Page implements AutoCloseable {
     private long num;
-    private byte[] data;
+    private ByteBuffer data;
+    // Set when the page is one of the regions of a PageArena
+    private final PageArena arena;
+    private final int slot;
 
-    public Page(long num, byte[] data) {
+    public Page(long num, ByteBuffer data) {
         this.num = num;
         this.data = data;
+        this.arena = null;
+        this.slot = -1;
+    }
+
+    public Page(ByteBuffer data) {
+        this(0, data);
+    }
+
+    public Page(long num, byte[] data) {
+        this(num, ByteBuffer.wrap(data));
     }
 
     public Page(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    Page(PageArena arena, int slot, ByteBuffer data) {
         this.data = data;
+        this.arena = arena;
+        this.slot = slot;
     }
 
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
 
-    public void setData(byte[] data) {
+    public void setData(ByteBuffer data) {
         this.data = data;
     }
 
@@ -28,4 +49,23 @@ public class Page {
     public void setNum(long num) {
         this.num = num;
     }
+
+    int getSlot() {
+        return slot;
+    }
+
+    /**
+     * Gives the page back to the arena it was acquired from. Neither the page nor its data may be used afterwards.
+     * Pages that don't belong to an arena are left to the garbage collector.
+     */
+    public void release() {
+        if (arena != null) {
+            arena.release(this);
+        }
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
 }
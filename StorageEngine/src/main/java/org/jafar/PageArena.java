@@ -0,0 +1,82 @@
+package org.jafar;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed number of page sized regions carved out of a single direct buffer. The DAL acquires a page for every read
+ * and write and releases it once the contents were decoded or written, so the regions (and the Page objects wrapping
+ * them) are reused instead of allocating a new buffer per page. Only pages acquired for writes are zeroed, a read
+ * overwrites the whole page anyway.
+ * When every region is in use, acquire falls back to a heap page that is simply dropped on release.
+ */
+public class PageArena {
+    private final int pageSize;
+    private final Page[] pages;
+    private final int[] free;
+    private int freeCount;
+    private final ByteBuffer zeroes;
+    private final LongAdder overflows = new LongAdder();
+
+    public PageArena(int pageSize, int capacity) {
+        this.pageSize = pageSize;
+        this.pages = new Page[capacity];
+        this.free = new int[capacity];
+        this.zeroes = ByteBuffer.allocateDirect(pageSize);
+
+        ByteBuffer memory = ByteBuffer.allocateDirect(pageSize * capacity);
+        for (int i = 0; i < capacity; i++) {
+            ByteBuffer region = memory.slice(i * pageSize, pageSize).order(ByteOrder.LITTLE_ENDIAN);
+            pages[i] = new Page(this, i, region);
+            free[i] = i;
+        }
+        this.freeCount = capacity;
+    }
+
+    public int getCapacity() { return pages.length; }
+
+    /**
+     * @return how many times acquire had to fall back to a heap page because the arena was exhausted
+     */
+    public long getOverflows() { return overflows.sum(); }
+
+    public synchronized int available() {
+        return freeCount;
+    }
+
+    /**
+     * Acquires a zeroed page. It must be given back with {@link Page#release()} once the caller is done with it.
+     */
+    public Page acquire() {
+        Page page = acquireForRead();
+        page.getData().put(0, zeroes, 0, pageSize);
+        return page;
+    }
+
+    /**
+     * Acquires a page that still holds whatever it held when it was released, for a read that fills all of it. It must
+     * be given back with {@link Page#release()} once the caller is done with it.
+     */
+    public Page acquireForRead() {
+        Page page = take();
+        if (page == null) {
+            overflows.increment();
+            return new Page(ByteBuffer.wrap(new byte[pageSize]).order(ByteOrder.LITTLE_ENDIAN));
+        }
+
+        page.getData().clear();
+        return page;
+    }
+
+    private synchronized Page take() {
+        if (freeCount == 0) {
+            return null;
+        }
+        return pages[free[--freeCount]];
+    }
+
+    synchronized void release(Page page) {
+        free[freeCount++] = page.getSlot();
+    }
+}
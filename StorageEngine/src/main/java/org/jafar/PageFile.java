@@ -0,0 +1,62 @@
+package org.jafar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The storage backend underneath the DAL. Implementations only move fixed size pages between memory and the database
+ * file, everything about the page contents is left to the DAL.
+ */
+public interface PageFile extends Closeable {
+    /**
+     * Reads a page.
+     *
+     * @param pageNum the page to read
+     * @param arena where to take the page buffer from, if the implementation has to copy the page at all
+     * @return the page, positioned at its start with the page size as its limit. The caller has to release it, and
+     * may only use it until the page is written again.
+     */
+    Page readPage(long pageNum, PageArena arena) throws IOException;
+
+    /**
+     * Writes a page.
+     *
+     * @param pageNum the page to write
+     * @param data the page contents, from index 0 up to its limit
+     */
+    void writePage(long pageNum, ByteBuffer data) throws IOException;
+
+    /**
+     * Writes pages that follow each other in the file, starting at the given page.
+     *
+     * @param firstPageNum the page to write the first buffer to
+     * @param pages the page contents, each from index 0 up to its limit
+     */
+    default void writePages(long firstPageNum, ByteBuffer[] pages) throws IOException {
+        for (int i = 0; i < pages.length; i++) {
+            writePage(firstPageNum + i, pages[i]);
+        }
+    }
+
+    /**
+     * Forces everything written so far to the storage device.
+     */
+    void sync() throws IOException;
+
+    /**
+     * Gives back the space the file takes past the given length, where the pages the database uses end. Only does
+     * anything for implementations that grow the file ahead of the pages written to it. A page written past the length
+     * afterwards grows the file again, so nothing may be left to write there, the DAL checkpoints its write-ahead log
+     * first.
+     */
+    default void trim(long length) throws IOException {
+    }
+
+    static PageFile open(String path, Options options) throws IOException {
+        return switch (options.getIOMode()) {
+            case FILE_CHANNEL -> new FileChannelPageFile(path, options.getPageSize(), options.getFileGrowthSize());
+            case MEMORY_MAPPED -> new MappedPageFile(path, options.getPageSize(), options.getMmapSegmentSize());
+        };
+    }
+}
@@ -0,0 +1,183 @@
+package org.jafar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Releases the pages of dropped collections. Dropping a collection only queues its root page, in a tree the meta
+ * points at, so the drop takes as long however large the collection was. The queue is worked off by small write
+ * transactions, each of which takes up to a batch of pages off it, queues their children, and frees them and their
+ * overflow pages, so the write lock is never held for the whole walk. The queue is part of every version, so pages
+ * that weren't released yet when the database is closed are released after it's opened again.
+ * A background thread works off the queue after every commit that dropped a collection, unless the batch is 0, and
+ * {@link #reclaim()} works it off in the calling thread.
+ */
+public class Reclaimer implements Closeable {
+    public static final int DefaultBatchPages = 64;
+    static final byte[] NoValue = new byte[0];
+
+    private final DB db;
+    private final int batchPages;
+    private final Thread reclaimer;
+
+    private boolean queued;
+    private IOException failure;
+    private boolean closed;
+
+    public Reclaimer(DB db, int batchPages) {
+        this.db = db;
+        this.batchPages = batchPages > 0 ? batchPages : DefaultBatchPages;
+        if (batchPages > 0) {
+            this.reclaimer = new Thread(this::run, "jafardb-reclaim");
+            this.reclaimer.setDaemon(true);
+            this.reclaimer.start();
+        } else {
+            this.reclaimer = null;
+        }
+    }
+
+    /**
+     * Returns the key of the page in the queue. Keys are big endian, so the pages are released in page order.
+     */
+    static byte[] pageKey(long pageNum) {
+        return ByteBuffer.allocate(Constants.PageNumSize).putLong(pageNum).array();
+    }
+
+    /**
+     * Has the background thread work off the queue.
+     */
+    public synchronized void wake() {
+        queued = true;
+        notifyAll();
+    }
+
+    /**
+     * Releases every page in the queue.
+     *
+     * @return how many pages were released
+     */
+    public long reclaim() throws IOException {
+        synchronized (this) {
+            if (failure != null) {
+                throw new IOException("background reclamation failed", failure);
+            }
+        }
+
+        long released = 0;
+        for (int pages = step(); pages > 0; pages = step()) {
+            released += pages;
+        }
+        return released;
+    }
+
+    /**
+     * Releases up to a batch of pages from the queue in one write transaction.
+     *
+     * @return how many pages were released, 0 once the queue is empty
+     */
+    int step() throws IOException {
+        Transaction transaction = db.writeTransaction();
+        boolean committed = false;
+        try {
+            if (!transaction.hasReclaimQueue()) {
+                return 0;
+            }
+            Collection queue = transaction.getReclaimQueue();
+            List<byte[]> keys = new ArrayList<>();
+            Iterator<Item> items = queue.scan(null, null, batchPages);
+            while (items.hasNext()) {
+                keys.add(items.next().key());
+            }
+            if (keys.isEmpty()) {
+                return 0;
+            }
+
+            int released = 0;
+            for (byte[] key : keys) {
+                if (released >= batchPages) {
+                    break;
+                }
+                Node node = transaction.getNode(ByteBuffer.wrap(key).getLong());
+                for (Item item : node.getItems()) {
+                    if (item.isOverflow()) {
+                        released += db.getDal().overflowPageCount(item.overflowLength());
+                        transaction.deleteValue(item);
+                    }
+                }
+                for (long child : node.getChildNodes()) {
+                    queue.put(pageKey(child), NoValue);
+                }
+                queue.remove(key);
+                transaction.deleteNode(node);
+                released++;
+            }
+            transaction.commit();
+            committed = true;
+            return released;
+        } catch (Constants.WriteInsideReadTransactionException e) {
+            // This is a write transaction
+            throw new IllegalStateException(e);
+        } finally {
+            if (!committed) {
+                transaction.rollback();
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    while (!closed && !queued) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+                queued = false;
+            }
+
+            try {
+                while (!isClosed() && step() > 0) {
+                    // Every step takes the write lock on its own, so writers get it between them
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    // What's left in the queue stays there, reclaim() reports why
+                    failure = e;
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops the background thread once it's done with the step it's in. What's left in the queue is released after the
+     * database is opened again.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        if (reclaimer != null) {
+            try {
+                reclaimer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.jafar;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tracks which versions the open read transactions are reading, so a writer knows when the pages an older version
+ * used can be reused, without readers ever taking a lock. Every reader holds a slot with the version it reads, and the
+ * oldest version in any slot is the oldest one that still has a reader.
+ * Slots are spread a cache line apart so readers on different cores don't write to the same line. When every slot is
+ * taken a new reader spins for a while and then parks for longer and longer until one is freed, it only ever waits for
+ * other readers. A reader that's never ended keeps its slot forever, so a new one gives up once it waited for the
+ * timeout.
+ */
+public class SnapshotRegistry {
+    private static final long FREE = -1;
+    // Longs per cache line
+    private static final int STRIDE = 8;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 10_000;
+    // Scans of the slots before a waiting reader parks, and the longest it parks at a time
+    private static final int SPINS = 100;
+    private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final int capacity;
+    private final long acquireTimeoutNanos;
+    private final AtomicLongArray slots;
+
+    public SnapshotRegistry(int capacity) {
+        this(capacity, DEFAULT_ACQUIRE_TIMEOUT_MILLIS);
+    }
+
+    public SnapshotRegistry(int capacity, long acquireTimeoutMillis) {
+        this.capacity = capacity;
+        this.acquireTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+        this.slots = new AtomicLongArray(capacity * STRIDE);
+        for (int i = 0; i < capacity; i++) {
+            slots.set(i * STRIDE, FREE);
+        }
+    }
+
+    public int getCapacity() { return capacity; }
+
+    /**
+     * Takes a free slot for a reader of the given version.
+     *
+     * @return the slot, to be passed to {@link #update(int, long)} and {@link #release(int)}
+     * @throws IllegalStateException if every slot stayed taken for the timeout
+     */
+    public int acquire(long version) {
+        int start = ThreadLocalRandom.current().nextInt(capacity);
+        long parkNanos = MAX_PARK_NANOS / 1024;
+        long waitStart = 0;
+        for (int attempt = 0; ; attempt++) {
+            for (int i = 0; i < capacity; i++) {
+                int slot = (start + i) % capacity;
+                if (slots.get(slot * STRIDE) == FREE && slots.compareAndSet(slot * STRIDE, FREE, version)) {
+                    return slot;
+                }
+            }
+            if (attempt < SPINS) {
+                Thread.onSpinWait();
+                continue;
+            }
+
+            if (attempt == SPINS) {
+                waitStart = System.nanoTime();
+            } else if (System.nanoTime() - waitStart > acquireTimeoutNanos) {
+                throw new IllegalStateException("all " + capacity + " read transaction slots stayed taken for " +
+                        TimeUnit.NANOSECONDS.toMillis(acquireTimeoutNanos) + " ms, read transactions that are " +
+                        "never committed or rolled back keep theirs");
+            }
+            LockSupport.parkNanos(parkNanos);
+            parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Moves the reader in the slot to a newer version.
+     */
+    public void update(int slot, long version) {
+        slots.set(slot * STRIDE, version);
+    }
+
+    public void release(int slot) {
+        slots.set(slot * STRIDE, FREE);
+    }
+
+    /**
+     * Returns the oldest version that has a reader, or the given current version if there are no readers.
+     */
+    public long oldest(long current) {
+        long oldest = current;
+        for (int i = 0; i < capacity; i++) {
+            long version = slots.get(i * STRIDE);
+            if (version != FREE && version < oldest) {
+                oldest = version;
+            }
+        }
+        return oldest;
+    }
+}
@@ -2,15 +2,34 @@ package org.jafar;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 public class Transaction {
     private HashMap<Long, Node> dirtyNodes;
-    private ArrayList<Long> pagesToDelete;
+    private HashSet<Long> pagesToDelete;
     // new pages allocated during the transaction. They will be released if rollback is called.
-    private ArrayList<Long> allocatedPageNums;
+    private HashSet<Long> allocatedPageNums;
+    // The page each node was reached from. Pages of the committed version are never written over, so at commit a
+    // changed node is copied to a new page, and so is every node on the path to it, to point at the copy.
+    private HashMap<Long, Long> parents;
+    // Collections changed during the transaction, their records are updated at commit with their new roots
+    private ArrayList<Collection> changedCollections;
+    private Collection rootCollection;
+    // Collections dropped during the transaction, their roots are queued for the reclaimer at commit
+    private ArrayList<Collection> droppedCollections;
+    private Collection reclaimQueue;
+    // The version the transaction started from, its root collection page and its reclaim queue page
+    private final long txId;
+    private final long root;
+    private final long reclaimRoot;
+    // Slot of a read transaction in the DB's snapshot registry
+    private final int snapshotSlot;
     private boolean write;
     private DB db;
 
@@ -19,9 +38,22 @@ public class Transaction {
     }
 
     public Transaction(DB db, boolean write) {
+        this(db, write, db.getDal().getMeta(), -1);
+    }
+
+    Transaction(DB db, boolean write, Meta snapshot, int snapshotSlot) {
         this.dirtyNodes = new HashMap<>();
-        this.pagesToDelete = new ArrayList<>();
-        this.allocatedPageNums = new ArrayList<>();
+        this.pagesToDelete = new HashSet<>();
+        this.allocatedPageNums = new HashSet<>();
+        if (write) {
+            this.parents = new HashMap<>();
+            this.changedCollections = new ArrayList<>();
+            this.droppedCollections = new ArrayList<>();
+        }
+        this.txId = snapshot.getTxId();
+        this.root = snapshot.getRoot();
+        this.reclaimRoot = snapshot.getReclaimRoot();
+        this.snapshotSlot = snapshotSlot;
         this.write = write;
         this.db = db;
     }
@@ -30,41 +62,172 @@ public class Transaction {
         return write;
     }
 
+    /**
+     * Returns the id of the transaction that committed the version this transaction reads.
+     */
+    public long getTxId() {
+        return txId;
+    }
+
+    int getSnapshotSlot() {
+        return snapshotSlot;
+    }
+
     public void rollback() {
         if (!write) {
-            db.getRwlock().readLock().unlock();
+            endRead();
+            return;
+        }
+        if (dirtyNodes == null) {
+            // Its commit failed, and let go of the write lock already
             return;
         }
 
         dirtyNodes = null;
         pagesToDelete = null;
+        parents = null;
+        changedCollections = null;
+        droppedCollections = null;
         for (long pageNum: allocatedPageNums) {
             db.getDal().getFreelist().releasePage(pageNum);
         }
 
         allocatedPageNums = null;
-        db.getRwlock().writeLock().unlock();
+        db.getWriteLock().unlock();
     }
 
     public void commit() throws IOException {
         if (!write) {
-            db.getRwlock().readLock().unlock();
+            endRead();
             return;
         }
 
-        for (Node node: dirtyNodes.values()) {
-            db.getDal().writeNode(node);
+        DAL dal = db.getDal();
+        Freelist freelist = dal.getFreelist();
+        long ticket;
+        boolean dropped;
+        // The write lock is released whatever happens, a commit that failed part way fails the ones after it
+        try {
+            dal.checkCommittable();
+            for (long pageNum: pagesToDelete) {
+                dirtyNodes.remove(pageNum);
+            }
+
+            // Copy the changed collections first, their records in the root collection have to point at the copies
+            HashMap<Long, Long> shadowPages = new HashMap<>();
+            shadow(shadowPages);
+            for (Collection collection: droppedCollections) {
+                // The tree is written as the transaction left it, so the reclaimer finds every page it has
+                long droppedRoot = shadowPages.getOrDefault(collection.getRoot(), collection.getRoot());
+                try {
+                    getReclaimQueue().put(Reclaimer.pageKey(droppedRoot), Reclaimer.NoValue);
+                } catch (Constants.WriteInsideReadTransactionException e) {
+                    // This is a write transaction
+                    throw new IllegalStateException(e);
+                }
+            }
+            for (Collection collection: changedCollections) {
+                collection.setRoot(shadowPages.getOrDefault(collection.getRoot(), collection.getRoot()));
+                Item record = collection.serialize();
+                try {
+                    getRootCollection().put(record.key(), record.value());
+                } catch (Constants.WriteInsideReadTransactionException e) {
+                    // This is a write transaction
+                    throw new IllegalStateException(e);
+                }
+            }
+            shadow(shadowPages);
+
+            for (Map.Entry<Long, Node> entry: dirtyNodes.entrySet()) {
+                Node node = entry.getValue();
+                node.setPageNum(shadowPages.getOrDefault(entry.getKey(), entry.getKey()));
+                node.getChildNodes().replaceAll(child -> shadowPages.getOrDefault(child, child));
+            }
+            dal.writeNodes(new ArrayList<>(dirtyNodes.values()));
+
+            // Readers of the previous versions may still be reading the pages this one no longer needs
+            long version = txId + 1;
+            for (long pageNum: shadowPages.keySet()) {
+                freelist.deferRelease(version, pageNum);
+            }
+            for (long pageNum: pagesToDelete) {
+                if (allocatedPageNums.contains(pageNum)) {
+                    freelist.releasePage(pageNum);
+                } else {
+                    freelist.deferRelease(version, pageNum);
+                }
+            }
+
+            long newRoot = root;
+            if (rootCollection != null) {
+                newRoot = shadowPages.getOrDefault(rootCollection.getRoot(), rootCollection.getRoot());
+                rootCollection.setRoot(newRoot);
+            }
+            long newReclaimRoot = reclaimRoot;
+            if (reclaimQueue != null) {
+                newReclaimRoot = shadowPages.getOrDefault(reclaimQueue.getRoot(), reclaimQueue.getRoot());
+                reclaimQueue.setRoot(newReclaimRoot);
+            }
+            ticket = dal.publish(newRoot, newReclaimRoot);
+            dropped = !droppedCollections.isEmpty();
+            dirtyNodes = null;
+            pagesToDelete = null;
+            allocatedPageNums = null;
+            parents = null;
+            changedCollections = null;
+            droppedCollections = null;
+            db.releasePendingPages();
+        } catch (IOException | RuntimeException e) {
+            dal.commitFailed(e);
+            dirtyNodes = null;
+            throw e;
+        } finally {
+            db.getWriteLock().unlock();
+        }
+        if (dropped) {
+            db.collectionsDropped();
         }
 
-        for (long pageNum: pagesToDelete) {
-            db.getDal().deleteNode(pageNum);
+        dal.awaitDurable(ticket);
+    }
+
+    private void endRead() {
+        // Ending twice would free a slot another reader may have taken since
+        if (dirtyNodes != null) {
+            dirtyNodes = null;
+            db.endRead(this);
         }
+    }
 
-        db.getDal().writeFreelist();
-        dirtyNodes = null;
-        pagesToDelete = null;
-        allocatedPageNums = null;
-        db.getRwlock().writeLock().unlock();
+    /**
+     * Assigns a new page to every changed node that's still on a page of the committed version, and to the nodes on
+     * the path to it. The nodes are only renumbered once all of them were assigned.
+     */
+    private void shadow(Map<Long, Long> shadowPages) throws IOException {
+        for (long pageNum: new ArrayList<>(dirtyNodes.keySet())) {
+            Long parent = parents.get(pageNum);
+            while (parent != null && !dirtyNodes.containsKey(parent) && !pagesToDelete.contains(parent)) {
+                dirtyNodes.put(parent, getNode(parent));
+                parent = parents.get(parent);
+            }
+        }
+
+        // The copies are given pages that follow each other, in the order of the pages they replace, so they're
+        // written with one call and a scan of the tree reads them in order
+        List<Long> toShadow = new ArrayList<>();
+        for (long pageNum: dirtyNodes.keySet()) {
+            if (!allocatedPageNums.contains(pageNum) && !shadowPages.containsKey(pageNum)) {
+                toShadow.add(pageNum);
+            }
+        }
+        if (toShadow.isEmpty()) {
+            return;
+        }
+        Collections.sort(toShadow);
+        long first = db.getDal().getFreelist().getNextPages(toShadow.size());
+        for (int i = 0; i < toShadow.size(); i++) {
+            shadowPages.put(toShadow.get(i), first + i);
+        }
     }
 
     public Node newNode(List<Item> items, List<Long> childNodes) {
@@ -78,12 +241,70 @@ public class Transaction {
         return node;
     }
 
+    /**
+     * Creates the item for a key and its value. A value too long for a node is written to new overflow pages right
+     * away, nothing points at them until the transaction commits.
+     */
+    public Item newItem(byte[] key, byte[] value) throws IOException {
+        DAL dal = db.getDal();
+        if (value.length <= dal.getMaxInlineValueSize()) {
+            return new Item(key, value);
+        }
+
+        long[] pageNums = new long[dal.overflowPageCount(value.length)];
+        long first = dal.getFreelist().getNextPages(pageNums.length);
+        for (int i = 0; i < pageNums.length; i++) {
+            pageNums[i] = first + i;
+            allocatedPageNums.add(pageNums[i]);
+        }
+        dal.writeOverflow(pageNums, value);
+        return Item.overflow(key, pageNums[0], value.length);
+    }
+
+    /**
+     * Returns the item with its value, reading it from its overflow pages if it's in any.
+     */
+    public Item readValue(Item item) throws IOException {
+        if (!item.isOverflow()) {
+            return item;
+        }
+        return new Item(item.key(), db.getDal().readOverflow(item.overflowPage(), item.overflowLength()));
+    }
+
+    /**
+     * Frees the overflow pages of an item that was removed or replaced.
+     */
+    public void deleteValue(Item item) throws IOException {
+        if (item.isOverflow()) {
+            pagesToDelete.addAll(db.getDal().readOverflowPages(item.overflowPage()));
+        }
+    }
+
     public Node writeNode(Node node) {
         dirtyNodes.put(node.getPageNum(), node);
         node.setTransaction(this);
         return node;
     }
 
+    /**
+     * Whether the page was allocated by this transaction, and so isn't part of any committed version.
+     */
+    boolean isNewPage(long pageNum) {
+        return allocatedPageNums.contains(pageNum);
+    }
+
+    /**
+     * Writes nodes on pages allocated by this transaction before it commits, so it doesn't have to keep them. Nothing
+     * points at their pages until it commits, the same as with overflow pages. A node that's changed again after
+     * this is read back and written once more at commit.
+     */
+    void writeNewNodes(List<Node> nodes) throws IOException {
+        for (Node node: nodes) {
+            dirtyNodes.remove(node.getPageNum());
+        }
+        db.getDal().writeNodes(nodes);
+    }
+
     public Node getNode(long pageNum) throws IOException {
         if (dirtyNodes != null && dirtyNodes.containsKey(pageNum)) {
             return dirtyNodes.get(pageNum);
@@ -94,17 +315,92 @@ public class Transaction {
         return node;
     }
 
+    /**
+     * Returns a child of the given node, remembering the parent in a write transaction.
+     */
+    public Node getNode(Node parent, long pageNum) throws IOException {
+        return getNode(parent.getPageNum(), pageNum);
+    }
+
+    Node getNode(long parentPageNum, long pageNum) throws IOException {
+        if (parents != null) {
+            parents.put(pageNum, parentPageNum);
+        }
+        return getNode(pageNum);
+    }
+
+    /**
+     * Points the view at the node in the page as this transaction sees it, for a lookup that doesn't change it.
+     */
+    NodeView viewNode(long pageNum, NodeView view) throws IOException {
+        if (dirtyNodes != null && dirtyNodes.containsKey(pageNum)) {
+            return view.wrap(dirtyNodes.get(pageNum));
+        }
+        return db.getDal().viewNode(pageNum, view);
+    }
+
     public void deleteNode(Node node) {
         pagesToDelete.add(node.getPageNum());
     }
 
+    /**
+     * Called by a collection when it's changed, so its record is updated at commit.
+     */
+    public void collectionChanged(Collection collection) {
+        if (collection == rootCollection || collection == reclaimQueue) {
+            return;
+        }
+        for (Collection changed: changedCollections) {
+            if (changed == collection) {
+                return;
+            }
+        }
+        changedCollections.add(collection);
+    }
+
     public Collection getRootCollection() {
+        // A write transaction keeps its root collection, as changing it may move its root
+        if (rootCollection != null) {
+            return rootCollection;
+        }
+
         Collection rootCollection = new Collection();
-        rootCollection.setRoot(db.getDal().getMeta().getRoot());
+        rootCollection.setRoot(root);
         rootCollection.setTransaction(this);
+        if (write) {
+            this.rootCollection = rootCollection;
+        }
         return rootCollection;
     }
 
+    /**
+     * Returns the queue of the pages of dropped collections the reclaimer still has to release, keyed by page number.
+     * It's created the first time a write transaction needs it.
+     */
+    Collection getReclaimQueue() {
+        if (reclaimQueue != null) {
+            return reclaimQueue;
+        }
+
+        Collection queue = new Collection();
+        queue.setRoot(reclaimRoot);
+        queue.setTransaction(this);
+        if (write) {
+            if (reclaimRoot == 0) {
+                queue.setRoot(writeNode(newNode(new ArrayList<>(), new ArrayList<>())).getPageNum());
+            }
+            this.reclaimQueue = queue;
+        }
+        return queue;
+    }
+
+    /**
+     * Whether there's a reclaim queue, either in the version the transaction started from or created by it.
+     */
+    boolean hasReclaimQueue() {
+        return reclaimRoot != 0 || reclaimQueue != null;
+    }
+
     public Optional<Collection> getCollection(byte[] name) throws IOException {
         Collection rootCollection = getRootCollection();
         Optional<Item> item = rootCollection.find(name);
@@ -123,7 +419,7 @@ public class Transaction {
             throw new Constants.WriteInsideReadTransactionException();
         }
 
-        Node newCollectionPage = db.getDal().writeNode(new Node());
+        Node newCollectionPage = writeNode(newNode(new ArrayList<>(), new ArrayList<>()));
 
         Collection newCollection = new Collection();
         newCollection.setName(name);
@@ -145,7 +441,38 @@ public class Transaction {
             throw new Constants.WriteInsideReadTransactionException();
         }
 
-        Collection rootCollection = getRootCollection();
-        return rootCollection.remove(name);
+        // A collection changed by this transaction may have a root its record doesn't point at yet
+        Optional<Collection> dropped = changedCollections.stream()
+                .filter(collection -> Arrays.equals(collection.getName(), name)).findFirst();
+        if (dropped.isEmpty()) {
+            dropped = getCollection(name);
+        }
+        if (dropped.isEmpty()) {
+            return false;
+        }
+
+        changedCollections.removeIf(collection -> Arrays.equals(collection.getName(), name));
+        getRootCollection().remove(name);
+        if (db.getDal().getMeta().isReclaimQueue()) {
+            droppedCollections.add(dropped.get());
+        } else {
+            // Formats without a reclaim queue release the pages of the tree right away
+            deleteTree(dropped.get().getRoot());
+        }
+        return true;
+    }
+
+    /**
+     * Frees the node in the page, its overflow pages and every node under it.
+     */
+    private void deleteTree(long pageNum) throws IOException {
+        Node node = getNode(pageNum);
+        for (Item item: node.getItems()) {
+            deleteValue(item);
+        }
+        for (long child: node.getChildNodes()) {
+            deleteTree(child);
+        }
+        deleteNode(node);
     }
 }
@@ -0,0 +1,92 @@
+package org.jafar;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Collects all the items of a tree in the same order as {@link Node#findAll(List)}, while keeping the reads of the
+ * next pages it's going to visit in flight on the DAL's prefetch threads. A scan over pages that aren't cached then
+ * waits on several reads at once instead of on one read at a time.
+ * The pages still to visit are kept on a stack, next one on top, so the top of the stack is exactly what to read
+ * ahead. Only used by read transactions, a write transaction's changed nodes aren't on disk yet.
+ */
+class TreeScan {
+    private final Transaction transaction;
+    private final DAL dal;
+    private final int readAhead;
+    private final ArrayDeque<Long> toVisit = new ArrayDeque<>();
+    private final Map<Long, CompletableFuture<Node>> inFlight = new HashMap<>();
+
+    TreeScan(Transaction transaction, int readAhead) {
+        this.transaction = transaction;
+        this.dal = transaction.getDb().getDal();
+        this.readAhead = readAhead;
+    }
+
+    void findAll(long root, List<Item> items) throws IOException {
+        try {
+            visit(transaction.getNode(root), items);
+            while (!toVisit.isEmpty()) {
+                readAhead();
+                visit(take(toVisit.pop()), items);
+            }
+        } finally {
+            // A scan that failed half way waits for its reads, none may finish once the transaction let go of its
+            // version and a writer could reuse the pages
+            for (CompletableFuture<Node> read : inFlight.values()) {
+                try {
+                    read.join();
+                } catch (CompletionException e) {
+                    // The scan already failed
+                }
+            }
+            inFlight.clear();
+        }
+    }
+
+    private void visit(Node node, List<Item> items) {
+        items.addAll(node.getItems());
+        List<Long> childNodes = node.getChildNodes();
+        for (int i = childNodes.size() - 1; i >= 0; i--) {
+            toVisit.push(childNodes.get(i));
+        }
+    }
+
+    private void readAhead() {
+        Iterator<Long> next = toVisit.iterator();
+        for (int i = 0; i < readAhead && next.hasNext(); i++) {
+            long pageNum = next.next();
+            if (!inFlight.containsKey(pageNum)) {
+                inFlight.put(pageNum, dal.prefetchNode(pageNum));
+            }
+        }
+    }
+
+    private Node take(long pageNum) throws IOException {
+        CompletableFuture<Node> read = inFlight.remove(pageNum);
+        if (read == null) {
+            return transaction.getNode(pageNum);
+        }
+
+        Node node;
+        try {
+            node = read.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException io) {
+                throw io.getCause();
+            }
+            throw e;
+        }
+        // Cached here rather than on the prefetch thread, while the transaction still pins the version
+        node = dal.cacheNode(node);
+        node.setTransaction(transaction);
+        return node;
+    }
+}
@@ -0,0 +1,488 @@
+package org.jafar;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * A redo log in front of the data file. Every page the DAL writes is appended to the log as a frame instead of being
+ * written in place, and a commit appends a commit frame, so a commit is a single sequential write that only the log
+ * has to be synced for. The latest frame of every page is tracked in an in-memory index and reads are served from
+ * the log until the page has been checkpointed.
+ * The checkpointer copies the logged pages to their home location, syncs the data file and truncates the log. It runs
+ * in the background once the log holds enough frames, and on open, where it replays whatever committed transactions
+ * the log still holds after a crash. Frames of a transaction that never got its commit frame are ignored.
+ * A failed append leaves part of a transaction in the log, and a failed background checkpoint leaves nobody to report
+ * it to, so after either every later append and commit fails as well, with the first failure as the cause.
+ * Every truncation starts the log over with a new random salt that all of its frames carry. Frames of an earlier log
+ * can still be on disk past the end of the current one, recovery stops at the first frame with another salt than the
+ * first one, or with a transaction id that doesn't follow the one before.
+ *
+ * Frame layout: type (4 bytes), salt (8), transaction id (8), page number or frame count for commits (8), CRC32C of
+ * the previous fields and the page data (8), then the page data for page frames. Logs written before frames had a
+ * salt have frames without it, under other types, and are still recovered.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int PAGE_FRAME = 0x57414C70;
+    private static final int COMMIT_FRAME = 0x57414C63;
+    private static final int LEGACY_PAGE_FRAME = 0x57414C50;
+    private static final int LEGACY_COMMIT_FRAME = 0x57414C43;
+    public static final int FrameHeaderSize = 4 + 8 + 8 + 8 + 8;
+    private static final int LegacyFrameHeaderSize = 4 + 8 + 8 + 8;
+
+    private final FileChannel log;
+    private final PageFile dataFile;
+    private final int pageSize;
+    private final int checkpointFrames;
+
+    // Serializes appends and commits against each other and against the checkpointer
+    private final ReentrantLock appendLock = new ReentrantLock();
+    // Readers hold the read lock while they read a frame, so the log can't be truncated under them
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+    // Where the data of the latest frame of every page starts
+    private final Map<Long, Long> index = new HashMap<>();
+
+    // Frame headers for a batch of appends, grown to the largest batch
+    private ByteBuffer[] headers = {ByteBuffer.allocateDirect(FrameHeaderSize).order(ByteOrder.LITTLE_ENDIAN)};
+    private final ByteBuffer scratch;
+    private final CRC32C crc = new CRC32C();
+    private long end;
+    private long salt;
+    private long txId;
+    private long frames;
+    private long pendingFrames;
+    private IOException failure;
+
+    private final Thread checkpointer;
+    private boolean checkpointRequested;
+    private boolean closed;
+    private final LongAdder checkpoints = new LongAdder();
+
+    /**
+     * Opens the log next to the data file and recovers it.
+     *
+     * @param checkpointFrames how many frames the log may hold before the background checkpointer runs, 0 disables
+     *                         background checkpoints
+     */
+    public WriteAheadLog(String path, PageFile dataFile, int pageSize, int checkpointFrames) throws IOException {
+        this.log = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.dataFile = dataFile;
+        this.pageSize = pageSize;
+        this.checkpointFrames = checkpointFrames;
+        this.scratch = ByteBuffer.allocateDirect(pageSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        try {
+            recover();
+        } catch (IOException | RuntimeException e) {
+            log.close();
+            throw e;
+        }
+
+        if (checkpointFrames > 0) {
+            this.checkpointer = new Thread(this::runCheckpointer, "jafardb-checkpointer");
+            this.checkpointer.setDaemon(true);
+            this.checkpointer.start();
+        } else {
+            this.checkpointer = null;
+        }
+    }
+
+    public static String logPath(String dataPath) {
+        return dataPath + "-wal";
+    }
+
+    public long getFrameCount() {
+        appendLock.lock();
+        try {
+            return frames;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public long getCheckpointCount() {
+        return checkpoints.sum();
+    }
+
+    /**
+     * Appends a page frame to the current transaction. The page is visible to readers of this log right away.
+     */
+    public void append(long pageNum, ByteBuffer data) throws IOException {
+        append(new long[] {pageNum}, new ByteBuffer[] {data});
+    }
+
+    /**
+     * Appends a frame for each of the pages to the current transaction with a single gathering write.
+     */
+    public void append(long[] pageNums, ByteBuffer[] pages) throws IOException {
+        appendLock.lock();
+        try {
+            checkFailure();
+            while (headers.length < pages.length) {
+                headers = growHeaders();
+            }
+            ByteBuffer[] frames = new ByteBuffer[pages.length * 2];
+            for (int i = 0; i < pages.length; i++) {
+                ByteBuffer page = pages[i].duplicate().position(0).limit(pageSize);
+                fillHeader(headers[i], PAGE_FRAME, pageNums[i], page);
+                frames[2 * i] = headers[i];
+                frames[2 * i + 1] = page;
+            }
+
+            long offset = end;
+            try {
+                log.position(end);
+                while (frames[frames.length - 1].hasRemaining()) {
+                    log.write(frames);
+                }
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            end += (long) pages.length * (FrameHeaderSize + pageSize);
+            pendingFrames += pages.length;
+            this.frames += pages.length;
+
+            indexLock.writeLock().lock();
+            try {
+                for (int i = 0; i < pages.length; i++) {
+                    index.put(pageNums[i], offset + (long) i * (FrameHeaderSize + pageSize) + FrameHeaderSize);
+                }
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private ByteBuffer[] growHeaders() {
+        ByteBuffer[] grown = Arrays.copyOf(headers, Math.max(1, headers.length * 2));
+        for (int i = headers.length; i < grown.length; i++) {
+            grown[i] = ByteBuffer.allocateDirect(FrameHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return grown;
+    }
+
+    /**
+     * Ends the current transaction with a commit frame. Nothing is synced, see {@link #sync()}.
+     */
+    public void commit() throws IOException {
+        appendLock.lock();
+        try {
+            checkFailure();
+            if (pendingFrames == 0) {
+                return;
+            }
+            try {
+                writeFrame(COMMIT_FRAME, pendingFrames);
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            txId++;
+            pendingFrames = 0;
+
+            if (checkpointer != null && frames >= checkpointFrames) {
+                requestCheckpoint();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public void sync() throws IOException {
+        log.force(false);
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("an earlier write to the write-ahead log failed", failure);
+        }
+    }
+
+    /**
+     * Returns the latest logged version of the page, or null if the page isn't in the log and has to be read from the
+     * data file. The caller has to release the page.
+     */
+    public Page readPage(long pageNum, PageArena arena) throws IOException {
+        indexLock.readLock().lock();
+        try {
+            Long offset = index.get(pageNum);
+            if (offset == null) {
+                return null;
+            }
+
+            Page page = arena.acquireForRead();
+            page.setNum(pageNum);
+            readFully(page.getData(), offset);
+            page.getData().clear();
+            return page;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes every logged page to the data file, syncs it and empties the log. Does nothing while a transaction is
+     * half way through appending its frames.
+     *
+     * @return whether the log was checkpointed
+     */
+    public boolean checkpoint() throws IOException {
+        appendLock.lock();
+        try {
+            if (pendingFrames > 0 || frames == 0) {
+                return false;
+            }
+
+            // Only appends change the index and we hold the append lock, so it can be read without the index lock
+            List<Long> pages = new ArrayList<>(index.keySet());
+            pages.sort(null);
+            for (long pageNum : pages) {
+                scratch.clear();
+                readFully(scratch, index.get(pageNum));
+                dataFile.writePage(pageNum, scratch.clear());
+            }
+            dataFile.sync();
+
+            indexLock.writeLock().lock();
+            try {
+                index.clear();
+                truncate();
+                frames = 0;
+            } finally {
+                indexLock.writeLock().unlock();
+            }
+            checkpoints.increment();
+            return true;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Empties the log and starts it over with a new salt.
+     */
+    private void truncate() throws IOException {
+        log.truncate(0);
+        end = 0;
+        salt = ThreadLocalRandom.current().nextLong();
+    }
+
+    private void writeFrame(int type, long value) throws IOException {
+        ByteBuffer header = headers[0];
+        fillHeader(header, type, value, null);
+
+        log.position(end);
+        while (header.hasRemaining()) {
+            log.write(header);
+        }
+        end += FrameHeaderSize;
+    }
+
+    private void fillHeader(ByteBuffer header, int type, long value, ByteBuffer page) {
+        header.clear();
+        header.putInt(type).putLong(salt).putLong(txId).putLong(value);
+
+        crc.reset();
+        crc.update(header.duplicate().flip());
+        if (page != null) {
+            crc.update(page.duplicate());
+        }
+        header.putLong(crc.getValue());
+        header.flip();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, start + buffer.position()) == -1) {
+                throw new IOException("write-ahead log ends in the middle of a frame");
+            }
+        }
+    }
+
+    /**
+     * Scans the log for frames of committed transactions, writes them home and truncates the log. The scan stops at
+     * the first frame that is incomplete or fails its checksum, which is where the previous process stopped writing,
+     * and at the first frame that belongs to an earlier log.
+     */
+    private void recover() throws IOException {
+        long size = log.size();
+        long position = 0;
+        long lastTxId = -1;
+        Map<Long, Long> pending = new HashMap<>();
+        long pendingTxId = -1;
+        // Every frame has to be of the kind and have the salt of the first one
+        boolean legacy = false;
+        long logSalt = 0;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FrameHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+        while (position + 4 <= size) {
+            frameHeader.clear().limit(4);
+            readFully(frameHeader, position);
+            int type = frameHeader.getInt(0);
+            boolean legacyFrame = type == LEGACY_PAGE_FRAME || type == LEGACY_COMMIT_FRAME;
+            if (!legacyFrame && type != PAGE_FRAME && type != COMMIT_FRAME) {
+                break;
+            }
+            if (position == 0) {
+                legacy = legacyFrame;
+            } else if (legacyFrame != legacy) {
+                break;
+            }
+            int headerSize = legacy ? LegacyFrameHeaderSize : FrameHeaderSize;
+            if (position + headerSize > size) {
+                break;
+            }
+
+            frameHeader.clear().limit(headerSize);
+            readFully(frameHeader, position);
+            long frameSalt = legacy ? 0 : frameHeader.getLong(4);
+            long frameTxId = frameHeader.getLong(headerSize - 24);
+            long value = frameHeader.getLong(headerSize - 16);
+            long checksum = frameHeader.getLong(headerSize - 8);
+            boolean pageFrame = type == PAGE_FRAME || type == LEGACY_PAGE_FRAME;
+            crc.reset();
+            crc.update(frameHeader.array(), 0, headerSize - 8);
+            if (pageFrame) {
+                if (position + headerSize + pageSize > size) {
+                    break;
+                }
+                scratch.clear();
+                readFully(scratch, position + headerSize);
+                crc.update(scratch.flip());
+            }
+            if (crc.getValue() != checksum) {
+                break;
+            }
+
+            if (position == 0) {
+                logSalt = frameSalt;
+            } else if (frameSalt != logSalt) {
+                // Left over from a log that was truncated and then written over
+                break;
+            }
+            if (frameTxId != pendingTxId) {
+                // A transaction only starts once the one before it committed, and gets the id after it
+                if (!pending.isEmpty() || (lastTxId != -1 && frameTxId != lastTxId + 1)) {
+                    break;
+                }
+                pendingTxId = frameTxId;
+            }
+            if (pageFrame) {
+                pending.put(value, position + headerSize);
+                position += headerSize + pageSize;
+            } else {
+                index.putAll(pending);
+                pending.clear();
+                lastTxId = frameTxId;
+                position += headerSize;
+            }
+        }
+        txId = lastTxId + 1;
+        frames = index.size();
+        end = size;
+        if (frames == 0) {
+            truncate();
+        } else {
+            checkpoint();
+        }
+    }
+
+    private void requestCheckpoint() {
+        synchronized (checkpointer) {
+            checkpointRequested = true;
+            checkpointer.notifyAll();
+        }
+    }
+
+    private void runCheckpointer() {
+        while (true) {
+            synchronized (checkpointer) {
+                while (!checkpointRequested && !closed) {
+                    try {
+                        checkpointer.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                checkpointRequested = false;
+            }
+
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                // The log keeps every frame, so the recovery on open can try again. Until then commits fail, as the
+                // log would only keep growing.
+                appendLock.lock();
+                try {
+                    failure = e;
+                } finally {
+                    appendLock.unlock();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Commits whatever is pending, checkpoints and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            stopCheckpointer();
+            commit();
+            checkpoint();
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Closes the log without committing the frames of the transaction in progress, which recovery ignores. What was
+     * committed stays in the log for the recovery on the next open.
+     */
+    public void abandon() throws IOException {
+        try {
+            stopCheckpointer();
+        } finally {
+            log.close();
+        }
+    }
+
+    private void stopCheckpointer() throws IOException {
+        if (checkpointer == null) {
+            return;
+        }
+        synchronized (checkpointer) {
+            closed = true;
+            checkpointer.notifyAll();
+        }
+        try {
+            checkpointer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while stopping the checkpointer");
+        }
+    }
+}
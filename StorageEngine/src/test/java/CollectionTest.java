@@ -5,7 +5,16 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 public class CollectionTest {
     @Test
@@ -55,6 +64,531 @@ public class CollectionTest {
         assertEquals(newVal, item.get().value());
     }
 
+    @Test
+    void findAllWithReadAhead() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setNodeCacheSize(0);
+        options.setScanReadAhead(4);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = String.format("key-%05d", i).getBytes();
+            collection.put(key, key);
+        }
+        // Write transactions walk the tree one page at a time
+        List<Item> expected = collection.findAll();
+        transaction.commit();
+
+        transaction = db.readTransaction();
+        List<Item> actual = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().findAll();
+        transaction.commit();
+
+        assertEquals(2000, actual.size());
+        assertEquals(expected, actual);
+        db.close();
+    }
+
+    @Test
+    void closeDoesntStrandReadAheadScans() throws Exception {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setNodeCacheSize(0);
+        options.setScanReadAhead(16);
+        options.setPrefetchThreads(1);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 20000; i++) {
+            byte[] key = String.format("key-%05d", i).getBytes();
+            collection.put(key, key);
+        }
+        transaction.commit();
+
+        AtomicBoolean closed = new AtomicBoolean();
+        Thread scanner = new Thread(() -> {
+            while (!closed.get()) {
+                Transaction reader = db.readTransaction();
+                try {
+                    reader.getCollection(TestUtils.TEST_COLLECTION_NAME).get().findAll();
+                } catch (Exception e) {
+                    // Reads fail once the file is closed, they just mustn't wait forever
+                } finally {
+                    try {
+                        reader.commit();
+                    } catch (IOException e) {
+                        // Ending a read transaction doesn't write anything
+                    }
+                }
+            }
+        });
+        scanner.start();
+        Thread.sleep(100);
+        db.close();
+        closed.set(true);
+
+        // The reads the scan was waiting for still run rather than being dropped
+        scanner.join(5000);
+        assertFalse(scanner.isAlive());
+    }
+
+    @Test
+    void findAllWithReadAheadCachesNodes() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setScanReadAhead(4);
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, options);
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = String.format("key-%05d", i).getBytes();
+            collection.put(key, key);
+        }
+        transaction.commit();
+        db.close();
+
+        // Prefetched nodes are cached by the scan as it takes them
+        db = DB.open(path, options);
+        transaction = db.readTransaction();
+        assertEquals(2000, transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().findAll().size());
+        int cached = db.getDal().getNodeCache().size();
+        assertTrue(cached > 4, cached + " nodes cached");
+        long misses = db.getDal().getNodeCache().getMisses();
+        assertEquals(2000, transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().findAll().size());
+        transaction.commit();
+        assertTrue(db.getDal().getNodeCache().getMisses() - misses < cached);
+        db.close();
+    }
+
+    @Test
+    void findInPagesWithoutNodeCache() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setNodeCacheSize(0);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 2000; i += 2) {
+            byte[] key = String.format("key-%05d", i).getBytes();
+            collection.put(key, String.format("value-%d", i).getBytes());
+        }
+        transaction.commit();
+
+        // Every node is searched directly in its page
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < 2000; i++) {
+            Optional<Item> item = collection.find(String.format("key-%05d", i).getBytes());
+            if (i % 2 == 0) {
+                assertArrayEquals(String.format("value-%d", i).getBytes(), item.get().value());
+            } else {
+                assertTrue(item.isEmpty());
+            }
+        }
+        assertTrue(collection.find("a".getBytes()).isEmpty());
+        assertTrue(collection.find("z".getBytes()).isEmpty());
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void scanRange() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = String.format("key-%05d", i).getBytes();
+            collection.put(key, key);
+        }
+        transaction.commit();
+
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+
+        Iterator<Item> items = collection.scan("key-00100".getBytes(), "key-00250".getBytes(), Integer.MAX_VALUE);
+        for (int i = 100; i < 250; i++) {
+            assertArrayEquals(String.format("key-%05d", i).getBytes(), items.next().key());
+        }
+        assertFalse(items.hasNext());
+        assertThrows(NoSuchElementException.class, items::next);
+
+        items = collection.scan("key-01990".getBytes(), null, 5);
+        for (int i = 1990; i < 1995; i++) {
+            assertArrayEquals(String.format("key-%05d", i).getBytes(), items.next().key());
+        }
+        assertFalse(items.hasNext());
+
+        int count = 0;
+        for (items = collection.scan(null, null, Integer.MAX_VALUE); items.hasNext(); items.next()) {
+            count++;
+        }
+        assertEquals(2000, count);
+        assertFalse(collection.scan("z".getBytes(), null, 10).hasNext());
+        assertFalse(collection.scan(null, "key-00000".getBytes(), 10).hasNext());
+        transaction.commit();
+        db.close();
+    }
+
+    private static Iterator<Item> sortedItems(int from, int to) {
+        return IntStream.range(from, to)
+                .mapToObj(i -> new Item(String.format("key-%06d", i).getBytes(), String.format("value-%d", i).getBytes()))
+                .iterator();
+    }
+
+    private static void assertBalanced(Transaction transaction, long pageNum, boolean minFill) throws IOException {
+        Node node = transaction.getNode(pageNum);
+        assertFalse(node.isOverPopulated());
+        assertEquals(node.isLeaf() ? 0 : node.getItems().size() + 1, node.getChildNodes().size());
+        for (long child : node.getChildNodes()) {
+            assertBalanced(transaction, child, minFill);
+            assertFalse(minFill && transaction.getNode(child).isUnderPopulated());
+        }
+    }
+
+    private static void assertLoaded(Collection collection, int count) throws IOException {
+        Iterator<Item> items = collection.scan(null, null, Integer.MAX_VALUE);
+        for (int i = 0; i < count; i++) {
+            Item item = items.next();
+            assertArrayEquals(String.format("key-%06d", i).getBytes(), item.key());
+            assertArrayEquals(String.format("value-%d", i).getBytes(), item.value());
+        }
+        assertFalse(items.hasNext());
+        assertBalanced(collection.getTransaction(), collection.getRoot(), true);
+    }
+
+    @Test
+    void putAll() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        TreeMap<String, String> expected = new TreeMap<>();
+        for (int i = 0; i < 3000; i += 10) {
+            collection.put(String.format("key-%06d", i).getBytes(), "first".getBytes());
+            expected.put(String.format("key-%06d", i), "first");
+        }
+        transaction.commit();
+
+        // Batches of new keys, keys already in the collection, keys repeated in the batch and long values
+        Random random = new Random(7);
+        for (int batch = 0; batch < 5; batch++) {
+            transaction = db.writeTransaction();
+            collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+            List<Item> items = new ArrayList<>();
+            for (int j = 0; j < 2000; j++) {
+                String key = String.format("key-%06d", random.nextInt(6000));
+                String value = batch + "-" + j + (j % 50 == 0 ? "x".repeat(1000) : "");
+                items.add(new Item(key.getBytes(), value.getBytes()));
+                expected.put(key, value);
+            }
+            collection.putAll(items);
+            assertBalanced(transaction, collection.getRoot(), false);
+            transaction.commit();
+        }
+
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        Iterator<Item> items = collection.scan(null, null, Integer.MAX_VALUE);
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            Item item = items.next();
+            assertArrayEquals(entry.getKey().getBytes(), item.key());
+            assertArrayEquals(entry.getValue().getBytes(), item.value());
+        }
+        assertFalse(items.hasNext());
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void bulkLoad() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        DB db = DB.open(path, options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        collection.bulkLoad(sortedItems(0, 20000));
+        transaction.commit();
+        db.close();
+
+        db = DB.open(path, options);
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        assertLoaded(collection, 20000);
+        assertArrayEquals("value-12345".getBytes(), collection.find("key-012345".getBytes()).get().value());
+        transaction.commit();
+
+        // The tree takes changes like one that was built by putting the keys
+        transaction = db.writeTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < 20000; i += 3) {
+            assertTrue(collection.remove(String.format("key-%06d", i).getBytes()));
+        }
+        for (int i = 0; i < 20000; i += 3) {
+            collection.put(String.format("key-%06d", i).getBytes(), String.format("value-%d", i).getBytes());
+        }
+        transaction.commit();
+
+        transaction = db.readTransaction();
+        assertLoaded(transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get(), 20000);
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void bulkLoadAppends() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 1000; i++) {
+            collection.put(String.format("key-%06d", i).getBytes(), String.format("value-%d", i).getBytes());
+        }
+        transaction.commit();
+
+        // A handful of keys only fill the last leaf, then many more grow the tree
+        for (int[] range : new int[][]{{1000, 1003}, {1003, 8000}}) {
+            transaction = db.writeTransaction();
+            collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+            collection.bulkLoad(sortedItems(range[0], range[1]));
+            transaction.commit();
+        }
+
+        transaction = db.readTransaction();
+        assertLoaded(transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get(), 8000);
+        transaction.commit();
+
+        transaction = db.writeTransaction();
+        Collection appended = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        assertThrows(IllegalArgumentException.class, () -> appended.bulkLoad(sortedItems(7999, 8001)));
+        transaction.rollback();
+        db.close();
+    }
+
+    // 200 documents with increasing ids in every transaction
+    private static final TestUtils.DocumentWriter APPENDED_DOCUMENTS = (collection, transaction) -> {
+        for (int j = 0; j < 200; j++) {
+            collection.put(Collection.formatId(collection.nextId()).getBytes(), ("document " + transaction + "-" + j).getBytes());
+        }
+    };
+
+    @Test
+    void idsAppendToFullNodes() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        long halfFullPages = TestUtils.loadDocuments(TestUtils.getTempFileName(),
+                new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE), 20, APPENDED_DOCUMENTS);
+
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setRightEdgeSplit(true);
+        long fullPages = TestUtils.loadDocuments(path, options, 20, APPENDED_DOCUMENTS);
+        assertTrue(fullPages < halfFullPages * 3 / 4, fullPages + " pages with right edge splits, " + halfFullPages + " without");
+
+        // The counter is saved with the collection, and keys in the middle still split the usual way
+        DB db = DB.open(path, options);
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        assertEquals(4001, collection.nextId());
+        for (int i = 1; i <= 4000; i += 2) {
+            collection.put(Collection.formatId(i).getBytes(), "replaced".getBytes());
+            collection.put((Collection.formatId(i) + "-1").getBytes(), "inserted".getBytes());
+        }
+        transaction.commit();
+
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        assertEquals(6000, collection.findAll().size());
+        assertArrayEquals("document 19-199".getBytes(), collection.find(Collection.formatId(4000).getBytes()).get().value());
+        assertArrayEquals("inserted".getBytes(), collection.find((Collection.formatId(3999) + "-1").getBytes()).get().value());
+        assertBalanced(transaction, collection.getRoot(), false);
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void replacingLastKeySplitsTheUsualWay() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setRightEdgeSplit(true);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        // Filled until a larger value for its last key takes it over
+        DAL dal = db.getDal();
+        float fillFactor = (dal.maxThreshold() - 150) / dal.maxThreshold();
+        int count = 0;
+        while (!dal.isOverPopulated(transaction.getNode(collection.getRoot()), fillFactor)) {
+            collection.put(String.format("key-%02d", count++).getBytes(), new byte[50]);
+        }
+        assertTrue(transaction.getNode(collection.getRoot()).isLeaf());
+
+        // That isn't an append, so the leaf is split in halves rather than at its end
+        collection.put(String.format("key-%02d", count - 1).getBytes(), new byte[dal.getMaxInlineValueSize()]);
+        Node root = transaction.getNode(collection.getRoot());
+        assertEquals(2, root.getChildNodes().size());
+        Node right = transaction.getNode(root.getChildNodes().get(1));
+        assertTrue(right.getItems().size() > 1, right.getItems().size() + " items in the right leaf");
+        assertEquals(count, collection.findAll().size());
+        transaction.commit();
+        db.close();
+    }
+
+    private static String jsonDocument(int i) {
+        return String.format("{\"name\": \"user %d\", \"email\": \"user%d@example.com\", \"active\": %b, " +
+                "\"tags\": [\"reader\", \"writer\"], \"address\": {\"city\": \"Tel Aviv\", \"zip\": \"%05d\"}}",
+                i, i, i % 2 == 0, i % 100000);
+    }
+
+    // Documents put in random order, then every third key removed
+    private static final TestUtils.DocumentWriter JSON_DOCUMENTS = (collection, transaction) -> {
+        if (transaction == 0) {
+            Random random = new Random(3);
+            for (int i = 0; i < 4000; i++) {
+                int j = random.nextInt(8000);
+                collection.put(String.format("key-%06d", j).getBytes(), jsonDocument(j).getBytes());
+            }
+        } else {
+            for (int i = 0; i < 8000; i += 3) {
+                collection.remove(String.format("key-%06d", i).getBytes());
+            }
+        }
+    };
+
+    @Test
+    void compressedLeaves() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String plainPath = TestUtils.getTempFileName();
+        long plainPages = TestUtils.loadDocuments(plainPath,
+                new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE), 2, JSON_DOCUMENTS);
+
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setLeafCompression(true);
+        long pages = TestUtils.loadDocuments(path, options, 2, JSON_DOCUMENTS);
+        assertTrue(pages < plainPages / 2, pages + " pages with compressed leaves, " + plainPages + " without");
+
+        // Compressed pages are read the same with and without the node cache
+        for (int nodeCacheSize : new int[]{0, 100}) {
+            options.setNodeCacheSize(nodeCacheSize);
+            DB db = DB.open(path, options);
+            DB plainDb = DB.open(plainPath, new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE));
+            assertTrue(db.getDal().isLeafCompression());
+            assertFalse(plainDb.getDal().isLeafCompression());
+
+            Transaction transaction = db.readTransaction();
+            Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+            Transaction plainTransaction = plainDb.readTransaction();
+            Collection plainCollection = plainTransaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+
+            Iterator<Item> items = collection.scan(null, null, Integer.MAX_VALUE);
+            Iterator<Item> plainItems = plainCollection.scan(null, null, Integer.MAX_VALUE);
+            while (plainItems.hasNext()) {
+                Item item = items.next();
+                Item plainItem = plainItems.next();
+                assertArrayEquals(plainItem.key(), item.key());
+                assertArrayEquals(plainItem.value(), item.value());
+            }
+            assertFalse(items.hasNext());
+            for (int i = 0; i < 8000; i += 7) {
+                Optional<Item> item = collection.find(String.format("key-%06d", i).getBytes());
+                assertEquals(plainCollection.find(String.format("key-%06d", i).getBytes()).isPresent(), item.isPresent());
+                if (item.isPresent()) {
+                    assertArrayEquals(jsonDocument(i).getBytes(), item.get().value());
+                }
+            }
+            assertBalanced(transaction, collection.getRoot(), false);
+            transaction.commit();
+            plainTransaction.commit();
+            db.close();
+            plainDb.close();
+        }
+    }
+
+    @Test
+    void bulkLoadCompressedLeaves() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setLeafCompression(true);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        collection.bulkLoad(sortedItems(0, 20000));
+        transaction.commit();
+
+        transaction = db.readTransaction();
+        assertLoaded(transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get(), 20000);
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void largeValuesGoToOverflowPages() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        DB db = DB.open(path, options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 50; i++) {
+            collection.put(String.format("doc-%03d", i).getBytes(), TestUtils.document(i, 300 + i * 200));
+        }
+        // A value that fits in a node stays there
+        collection.put("small".getBytes(), "value".getBytes());
+        transaction.commit();
+
+        transaction = db.writeTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        collection.put("doc-000".getBytes(), "replaced".getBytes());
+        assertTrue(collection.remove("doc-001".getBytes()));
+        transaction.commit();
+        db.close();
+
+        db = DB.open(path, options);
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        assertArrayEquals("replaced".getBytes(), collection.find("doc-000".getBytes()).get().value());
+        assertTrue(collection.find("doc-001".getBytes()).isEmpty());
+        for (int i = 2; i < 50; i++) {
+            assertArrayEquals(TestUtils.document(i, 300 + i * 200), collection.find(String.format("doc-%03d", i).getBytes()).get().value());
+        }
+        assertArrayEquals("value".getBytes(), collection.find("small".getBytes()).get().value());
+
+        List<Item> items = collection.findAll();
+        assertEquals(50, items.size());
+        for (Item item : items) {
+            assertFalse(item.isOverflow());
+        }
+        transaction.commit();
+
+        // The pages of the values that were replaced or removed are reused
+        assertTrue(db.getDal().getFreelist().getReleasedPages().size() >= 2);
+        db.close();
+    }
+
+    @Test
+    void overflowPagesOfRolledBackValuesAreReleased() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        transaction.commit();
+        long maxPage = db.getDal().getFreelist().getMaxPage();
+        int released = db.getDal().getFreelist().getReleasedPages().size();
+
+        transaction = db.writeTransaction();
+        transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().put("doc".getBytes(), TestUtils.document(0, 20000));
+        transaction.rollback();
+
+        Freelist freelist = db.getDal().getFreelist();
+        assertEquals(freelist.getMaxPage() - maxPage, freelist.getReleasedPages().size() - released);
+        db.close();
+    }
+
+    @Test
+    void keysLongerThanANodeCanStoreAreRejected() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        assertThrows(IllegalArgumentException.class, () -> collection.put(new byte[256], new byte[1]));
+        transaction.rollback();
+        db.close();
+    }
+
     @Test
     void deleteCollection() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
         DB db = TestUtils.createTestDB();
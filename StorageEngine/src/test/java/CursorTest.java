@@ -0,0 +1,96 @@
+import org.jafar.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CursorTest {
+    private static final int COUNT = 3000;
+
+    private static byte[] key(int i) {
+        return String.format("key-%05d", i).getBytes();
+    }
+
+    private static DB createDB() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        // Only even keys, so seeks between them can be checked
+        for (int i = 0; i < COUNT; i += 2) {
+            collection.put(key(i), String.format("value-%d", i).getBytes());
+        }
+        transaction.commit();
+        return db;
+    }
+
+    @Test
+    void iterateForwardAndBackward() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = createDB();
+        Transaction transaction = db.readTransaction();
+        Cursor cursor = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().cursor();
+
+        int expected = 0;
+        for (Optional<Item> item = cursor.next(); item.isPresent(); item = cursor.next()) {
+            assertArrayEquals(key(expected), item.get().key());
+            assertArrayEquals(String.format("value-%d", expected).getBytes(), item.get().value());
+            expected += 2;
+        }
+        assertEquals(COUNT, expected);
+
+        expected = COUNT - 2;
+        for (Optional<Item> item = cursor.last(); item.isPresent(); item = cursor.prev()) {
+            assertArrayEquals(key(expected), item.get().key());
+            expected -= 2;
+        }
+        assertEquals(-2, expected);
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void seek() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = createDB();
+        Transaction transaction = db.readTransaction();
+        Cursor cursor = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().cursor();
+
+        for (int i = 0; i < COUNT; i++) {
+            int expected = i % 2 == 0 ? i : i + 1;
+            Optional<Item> item = cursor.seek(key(i));
+            if (expected >= COUNT) {
+                assertTrue(item.isEmpty());
+                continue;
+            }
+            assertArrayEquals(key(expected), item.get().key());
+            assertArrayEquals(key(expected), cursor.current().get().key());
+            if (expected > 0) {
+                assertArrayEquals(key(expected - 2), cursor.prev().get().key());
+                assertArrayEquals(key(expected), cursor.next().get().key());
+            }
+            if (expected + 2 < COUNT) {
+                assertArrayEquals(key(expected + 2), cursor.next().get().key());
+            }
+        }
+        assertArrayEquals(key(0), cursor.seek("a".getBytes()).get().key());
+        assertTrue(cursor.prev().isEmpty());
+        assertTrue(cursor.seek("z".getBytes()).isEmpty());
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void emptyCollection() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        Cursor cursor = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME).cursor();
+
+        assertTrue(cursor.first().isEmpty());
+        assertTrue(cursor.next().isEmpty());
+        assertTrue(cursor.last().isEmpty());
+        assertTrue(cursor.prev().isEmpty());
+        assertTrue(cursor.seek(key(0)).isEmpty());
+        transaction.rollback();
+        db.close();
+    }
+}
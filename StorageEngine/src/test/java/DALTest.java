@@ -2,18 +2,31 @@ import org.jafar.*;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 public class DALTest {
     DAL createTestDAL() throws IOException, Constants.NotJafarDBFile {
-        String fileName = TestUtils.getTempFileName();
+        return createTestDAL(TestUtils.getTempFileName(), Options.IOMode.FILE_CHANNEL);
+    }
+
+    DAL createTestDAL(String fileName, Options.IOMode ioMode) throws IOException, Constants.NotJafarDBFile {
         Options options = new Options();
         options.setPageSize(TestUtils.TEST_PAGE_SIZE);
+        options.setIOMode(ioMode);
+        // Small segments so the tests cross segment boundaries
+        options.setMmapSegmentSize(4L * TestUtils.TEST_PAGE_SIZE);
         DAL dal = new DAL(fileName, options);
 
         return dal;
@@ -66,6 +79,79 @@ public class DALTest {
         assertEquals(newNode.getPageNum(), dal.getFreelist().getMaxPage());
     }
 
+    @Test
+    void writeNodesInRuns() throws IOException, Constants.NotJafarDBFile {
+        for (Options.IOMode ioMode : Options.IOMode.values()) {
+            DAL dal = createTestDAL(TestUtils.getTempFileName(), ioMode);
+            assertNodesWrittenInRuns(dal);
+            dal.close();
+        }
+
+        Options options = new Options();
+        options.setPageSize(TestUtils.TEST_PAGE_SIZE);
+        options.setWriteAheadLog(true);
+        DAL dal = new DAL(TestUtils.getTempFileName(), options);
+        assertNodesWrittenInRuns(dal);
+        dal.close();
+    }
+
+    private void assertNodesWrittenInRuns(DAL dal) throws IOException {
+        // Runs of pages longer than a single write, broken up by pages that aren't written
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            long pageNum = dal.getFreelist().getNextPage();
+            if (i % 37 != 36) {
+                Node node = new Node(TestUtils.createItems(Integer.toString(i)), new ArrayList<>());
+                node.setPageNum(pageNum);
+                nodes.add(node);
+            }
+        }
+        Collections.shuffle(nodes, new Random(1));
+
+        dal.writeNodes(nodes);
+
+        for (Node node : nodes) {
+            assertEquals(node, dal.getNode(node.getPageNum()));
+        }
+        assertEquals(dal.getArena().getCapacity(), dal.getArena().available());
+    }
+
+    @Test
+    void trimWithWriteAheadLog() throws IOException, Constants.NotJafarDBFile {
+        String fileName = TestUtils.getTempFileName();
+        Options options = new Options();
+        options.setPageSize(TestUtils.TEST_PAGE_SIZE);
+        options.setWriteAheadLog(true);
+        options.setWalCheckpointFrames(0);
+        options.setFileGrowthSize(1024 * 1024);
+        DAL dal = new DAL(fileName, options);
+
+        // The pages are only in the log, the ones at the end are freed before it's checkpointed
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            nodes.add(dal.writeNode(new Node(TestUtils.createItems(Integer.toString(i)), new ArrayList<>())));
+        }
+        dal.endCommit();
+        for (Node node : nodes.subList(5, 10)) {
+            dal.deleteNode(node.getPageNum());
+        }
+        dal.getFreelist().shrink();
+        long maxPage = dal.getFreelist().getMaxPage();
+        assertEquals(nodes.get(4).getPageNum(), maxPage);
+
+        // Writing them home after the trim would grow the file again
+        dal.trim();
+        assertEquals(0, dal.getWal().getFrameCount());
+        assertEquals((maxPage + 1) * TestUtils.TEST_PAGE_SIZE, Files.size(Paths.get(fileName)));
+        dal.getWal().checkpoint();
+        assertEquals((maxPage + 1) * TestUtils.TEST_PAGE_SIZE, Files.size(Paths.get(fileName)));
+
+        for (Node node : nodes.subList(0, 5)) {
+            assertEquals(node, dal.getNode(node.getPageNum()));
+        }
+        dal.close();
+    }
+
     @Test
     void createDalWithNewFile() throws IOException, Constants.NotJafarDBFile {
         DAL dal = createTestDAL();
@@ -78,4 +164,64 @@ public class DALTest {
         assertEquals(freelistPageNum, metaPage.getFreelistPage());
         assertEquals(rootPageNum, metaPage.getRoot());
     }
+
+    @Test
+    void createAndGetNodeMemoryMapped() throws IOException, Constants.NotJafarDBFile {
+        DAL dal = createTestDAL(TestUtils.getTempFileName(), Options.IOMode.MEMORY_MAPPED);
+
+        List<Node> expectedNodes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            List<Item> items = Arrays.asList(new Item(("key" + i).getBytes(), ("val" + i).getBytes()));
+            expectedNodes.add(dal.writeNode(new Node(items, new ArrayList<>())));
+        }
+
+        for (Node expectedNode : expectedNodes) {
+            assertEquals(expectedNode, dal.getNode(expectedNode.getPageNum()));
+        }
+    }
+
+    @Test
+    void reopenWithDifferentIOMode() throws IOException, Constants.NotJafarDBFile {
+        String fileName = TestUtils.getTempFileName();
+        DAL dal = createTestDAL(fileName, Options.IOMode.MEMORY_MAPPED);
+        List<Item> items = Arrays.asList(new Item("key1".getBytes(), "val1".getBytes()));
+        Node expectedNode = dal.writeNode(new Node(items, new ArrayList<>()));
+        dal.close();
+
+        DAL reopened = createTestDAL(fileName, Options.IOMode.FILE_CHANNEL);
+        assertEquals(dal.getMeta(), reopened.getMeta());
+        assertEquals(expectedNode, reopened.getNode(expectedNode.getPageNum()));
+        reopened.close();
+    }
+
+    @Test
+    void concurrentReads() throws Exception {
+        Options options = new Options();
+        options.setPageSize(TestUtils.TEST_PAGE_SIZE);
+        options.setNodeCacheSize(0);
+        DAL dal = new DAL(TestUtils.getTempFileName(), options);
+
+        List<Node> expectedNodes = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            expectedNodes.add(dal.writeNode(new Node(TestUtils.createItems(Integer.toString(i)), new ArrayList<>())));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int offset = t;
+            readers.add(executor.submit(() -> {
+                for (int i = 0; i < 500; i++) {
+                    Node expectedNode = expectedNodes.get((i + offset) % expectedNodes.size());
+                    assertEquals(expectedNode, dal.getNode(expectedNode.getPageNum()));
+                }
+                return null;
+            }));
+        }
+
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+        executor.shutdown();
+    }
 }
@@ -2,7 +2,15 @@ import org.jafar.*;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -107,4 +115,614 @@ public class DBTest {
 
         transaction.commit();
     }
+
+    @Test
+    void testDBOpenFallsBackToPreviousMeta() throws Exception {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        byte[] value = TestUtils.createItem("0");
+        collection.put(value, value);
+        transaction.commit();
+
+        transaction = db.writeTransaction();
+        collection.setTransaction(transaction);
+        collection.remove(value);
+        transaction.commit();
+        Meta removed = db.getDal().getMeta();
+        db.close();
+
+        // Tear the slot closing the database wrote to, opening has to fall back to the version of the last commit
+        Meta closed = db.getDal().getMeta();
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(closed.slotOffset(TestUtils.TEST_PAGE_SIZE) + 4);
+            file.writeLong(-1);
+        }
+        db = DB.open(path, options);
+        assertEquals(removed, db.getDal().getMeta());
+
+        transaction = db.readTransaction();
+        assertTrue(transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().find(value).isEmpty());
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void testDBOpensLegacyFile() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        // Written before meta had slots, the collection fits a leaf as that build lost keys once its root split
+        assertOpensFixture("TestOpenFormatLegacy", 80, Meta.FormatVersionLegacy);
+    }
+
+    @Test
+    void testDBOpensFilesOfEarlierFormats() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        // Each written by the last build whose new files were in that format, the second with prefix compression
+        assertOpensFixture("TestOpenFormatVersion1", 150, Meta.FormatVersionPlain);
+        assertOpensFixture("TestOpenFormatVersion2", 150, Meta.FormatVersionPrefixCompression);
+        assertOpensFixture("TestOpenFormatVersion3", 150, Meta.FormatVersionWide);
+        assertOpensFixture("TestOpenFormatVersion4", 150, Meta.FormatVersionFreelistBitmap);
+    }
+
+    /**
+     * Opens a copy of a file written by an earlier build, which put the keys key-0000 up to the count and then removed
+     * every third one, and checks that it reads, takes a commit and opens again in the format it had.
+     */
+    private static void assertOpensFixture(String fixture, int count, int formatVersion) throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Files.copy(Paths.get(TestUtils.getExpectedResultFileName(fixture)), Paths.get(path));
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        DB db = DB.open(path, options);
+        assertEquals(formatVersion, db.getDal().getMeta().getFormatVersion());
+        long txId = db.getDal().getMeta().getTxId();
+
+        Transaction transaction = db.readTransaction();
+        Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < count; i++) {
+            Optional<Item> item = collection.find(String.format("key-%04d", i).getBytes());
+            assertEquals(i % 3 != 0, item.isPresent(), "key " + i);
+            if (i % 3 != 0) {
+                assertArrayEquals(("value-" + i).getBytes(), item.get().value());
+            }
+        }
+        assertEquals(count - (count + 2) / 3, collection.findAll().size());
+        transaction.commit();
+
+        transaction = db.writeTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < count; i += 3) {
+            collection.put(String.format("key-%04d", i).getBytes(), ("value-" + i).getBytes());
+        }
+        transaction.commit();
+        db.close();
+
+        // A file without slots has them now
+        db = DB.open(path, options);
+        assertEquals(Math.max(formatVersion, Meta.FormatVersionPlain), db.getDal().getMeta().getFormatVersion());
+        assertTrue(db.getDal().getMeta().getTxId() > txId);
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < count; i++) {
+            assertArrayEquals(("value-" + i).getBytes(), collection.find(String.format("key-%04d", i).getBytes()).get().value());
+        }
+        assertEquals(count, collection.findAll().size());
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void testDBCommitFailsWhenMetaWriteFails() throws Exception {
+        DB db = TestUtils.createTestDB();
+        db.close();
+        Meta meta = db.getDal().getMeta();
+
+        // A commit without changed nodes only writes the freelist and the meta, to a file that's closed
+        Transaction transaction = db.writeTransaction();
+        assertThrows(IOException.class, transaction::commit);
+        assertSame(meta, db.getDal().getMeta());
+        transaction.rollback();
+
+        // The lock is reentrant, so only another thread can tell it was released
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<Boolean> locked = executor.submit(() -> {
+            boolean free = db.getWriteLock().tryLock();
+            if (free) {
+                db.getWriteLock().unlock();
+            }
+            return free;
+        });
+        assertTrue(locked.get());
+        executor.shutdown();
+
+        // The freelist no longer matches the file, so later commits fail before writing anything
+        transaction = db.writeTransaction();
+        IOException failure = assertThrows(IOException.class, transaction::commit);
+        assertTrue(failure.getMessage().contains("an earlier commit failed"), failure.getMessage());
+        assertSame(meta, db.getDal().getMeta());
+    }
+
+    @Test
+    void testDBSyncDurabilityForcesEveryCommit() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setDurability(Options.Durability.SYNC);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        transaction.commit();
+
+        for (int i = 0; i < 3; i++) {
+            transaction = db.writeTransaction();
+            collection.setTransaction(transaction);
+            byte[] value = TestUtils.createItem(Integer.toString(i));
+            collection.put(value, value);
+            transaction.commit();
+        }
+
+        // Without a log every commit syncs before and after writing the meta
+        assertEquals(8, db.getDal().getSyncCount());
+
+        // Read transactions have nothing to make durable
+        db.readTransaction().commit();
+        assertEquals(8, db.getDal().getSyncCount());
+        db.close();
+    }
+
+    @Test
+    void testDBGroupCommitSharesSyncs() throws Exception {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setDurability(Options.Durability.GROUP);
+        options.setGroupCommitWindowMicros(20_000);
+        String path = TestUtils.getTempFileName();
+        // Without the log the meta of a commit could reach the disk before its pages
+        assertThrows(IllegalArgumentException.class, () -> DB.open(path, options));
+        options.setWriteAheadLog(true);
+        DB db = DB.open(path, options);
+
+        Transaction transaction = db.writeTransaction();
+        transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        transaction.commit();
+
+        int committers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(committers);
+        List<Future<?>> commits = new ArrayList<>();
+        for (int i = 0; i < committers; i++) {
+            byte[] value = ("" + i).getBytes();
+            commits.add(executor.submit(() -> {
+                Transaction writeTransaction = db.writeTransaction();
+                writeTransaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().put(value, value);
+                writeTransaction.commit();
+                return null;
+            }));
+        }
+        for (Future<?> commit : commits) {
+            commit.get();
+        }
+        executor.shutdown();
+
+        // Every commit returned, so every commit was synced, but they didn't need a sync each
+        assertTrue(db.getDal().getSyncCount() < committers + 1);
+
+        transaction = db.readTransaction();
+        Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < committers; i++) {
+            assertTrue(collection.find(("" + i).getBytes()).isPresent());
+        }
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void testDBPrefixCompressedFormat() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        int count = 2000;
+        Options plain = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        long plainPages = TestUtils.loadDocuments(TestUtils.getTempFileName(), plain, 1, TestUtils.documents(count, i -> ("v" + i).getBytes()));
+
+        Options compressed = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        compressed.setPrefixCompression(true);
+        String path = TestUtils.getTempFileName();
+        long compressedPages = TestUtils.loadDocuments(path, compressed, 1, TestUtils.documents(count, i -> ("v" + i).getBytes()));
+        assertTrue(compressedPages < plainPages / 2, compressedPages + " pages compressed, " + plainPages + " plain");
+
+        // The file keeps its format without asking for it again
+        DB db = DB.open(path, plain);
+        assertTrue(db.getDal().getMeta().isPrefixCompression());
+
+        // Keys without the shared prefix take the prefix of the nodes they go into away
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < count; i += 2) {
+            assertTrue(collection.remove(TestUtils.documentKey(i)));
+        }
+        for (int i = 0; i < 100; i++) {
+            byte[] key = String.format("%c-%d", 'a' + i % 26, i).getBytes();
+            collection.put(key, key);
+        }
+        transaction.commit();
+        db.close();
+
+        db = DB.open(path, plain);
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < count; i++) {
+            Optional<Item> item = collection.find(TestUtils.documentKey(i));
+            if (i % 2 == 0) {
+                assertTrue(item.isEmpty());
+            } else {
+                assertArrayEquals(("v" + i).getBytes(), item.get().value());
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            byte[] key = String.format("%c-%d", 'a' + i % 26, i).getBytes();
+            assertArrayEquals(key, collection.find(key).get().value());
+        }
+        assertEquals(count / 2 + 100, collection.findAll().size());
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void testDBLargePages() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(256 * 1024, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        TestUtils.loadDocuments(path, options, 1, TestUtils.documents(10000, i -> ("v" + i).getBytes()));
+
+        DB db = DB.open(path, options);
+        assertTrue(db.getDal().getMeta().isWide());
+        Transaction transaction = db.readTransaction();
+        Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < 10000; i++) {
+            assertArrayEquals(("v" + i).getBytes(), collection.find(TestUtils.documentKey(i)).get().value());
+        }
+        transaction.commit();
+        db.close();
+
+        // Refused before anything is created
+        String tooLarge = TestUtils.getTempFileName();
+        assertThrows(IllegalArgumentException.class, () -> DB.open(tooLarge, new Options(2 * 1024 * 1024, 0.5F, 0.95F)));
+        assertFalse(Files.exists(Paths.get(tooLarge)));
+    }
+
+    @Test
+    void testDBFailedOpenClosesWriteAheadLog() throws IOException {
+        String path = TestUtils.getTempFileName();
+        Files.copy(Paths.get(TestUtils.getExpectedResultFileName("TestOpenFormatVersion2")), Paths.get(path));
+        Options options = new Options(256 * 1024, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setWriteAheadLog(true);
+        long checkpointers = checkpointerCount();
+
+        // Pages of the narrow format can't be this large, which is only known once the log was opened
+        assertThrows(IOException.class, () -> DB.open(path, options));
+        assertEquals(checkpointers, checkpointerCount());
+    }
+
+    private static long checkpointerCount() {
+        return Thread.getAllStackTraces().keySet().stream().filter(t -> t.getName().equals("jafardb-checkpointer")).count();
+    }
+
+    @Test
+    void testDBMorePagesThanNarrowFormatCounts() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        DB db = DB.open(path, options);
+        db.getDal().getFreelist().setMaxPage(40000);
+        Transaction transaction = db.writeTransaction();
+        transaction.createCollection(TestUtils.TEST_COLLECTION_NAME).put("key".getBytes(), "value".getBytes());
+        transaction.commit();
+        long maxPage = db.getDal().getFreelist().getMaxPage();
+        db.close();
+
+        db = DB.open(path, options);
+        assertEquals(maxPage, db.getDal().getFreelist().getMaxPage());
+        transaction = db.readTransaction();
+        assertArrayEquals("value".getBytes(), transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().find("key".getBytes()).get().value());
+        transaction.commit();
+        db.close();
+    }
+
+    private static void collectPages(Transaction transaction, long pageNum, List<Long> pages) throws IOException {
+        pages.add(pageNum);
+        for (long child : transaction.getNode(pageNum).getChildNodes()) {
+            collectPages(transaction, child, pages);
+        }
+    }
+
+    @Test
+    void testDBFreelistSpansPages() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        DB db = DB.open(path, options);
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 40000; i++) {
+            collection.put(TestUtils.documentKey(i), ("v" + i).getBytes());
+        }
+        transaction.commit();
+
+        // More free pages than a freelist page can list, and more pages than a bitmap page has bits
+        for (int round = 0; round < 4; round++) {
+            transaction = db.writeTransaction();
+            collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+            for (int i = round; i < 40000; i += 4) {
+                if (i % 100 != 0) {
+                    assertTrue(collection.remove(TestUtils.documentKey(i)));
+                }
+            }
+            transaction.commit();
+        }
+        Freelist freelist = db.getDal().getFreelist();
+        int free = freelist.getReleasedPageCount() + freelist.getPendingPages().size();
+        assertTrue(free > Freelist.maxListedPages(TestUtils.TEST_PAGE_SIZE, true), free + " free pages");
+        long maxPage = freelist.getMaxPage();
+        db.close();
+
+        db = DB.open(path, options);
+        freelist = db.getDal().getFreelist();
+        assertEquals(maxPage, freelist.getMaxPage());
+        assertEquals(free, freelist.getReleasedPageCount());
+        transaction = db.readTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        assertEquals(400, collection.findAll().size());
+        List<Long> pages = new ArrayList<>();
+        collectPages(transaction, collection.getRoot(), pages);
+        for (long page : pages) {
+            assertFalse(freelist.isFree(page));
+        }
+        transaction.commit();
+
+        // The pages are reused before the file grows
+        transaction = db.writeTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < 40000; i += 3) {
+            collection.put(TestUtils.documentKey(i), ("w" + i).getBytes());
+        }
+        transaction.commit();
+        assertEquals(maxPage, db.getDal().getFreelist().getMaxPage());
+        db.close();
+    }
+
+    @Test
+    void testDBFileGrowsAheadOfPages() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setFileGrowthSize(1024 * 1024);
+        DB db = DB.open(path, options);
+        Transaction created = db.writeTransaction();
+        created.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        created.commit();
+        for (int i = 0; i < 10; i++) {
+            Transaction transaction = db.writeTransaction();
+            Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+            for (int j = 0; j < 1000; j++) {
+                collection.put(TestUtils.documentKey(i * 1000 + j), ("v" + j).getBytes());
+            }
+            transaction.commit();
+
+            // The file is larger than the pages in use, but by no more than it takes or the growth size
+            long used = (db.getDal().getFreelist().getMaxPage() + 1) * TestUtils.TEST_PAGE_SIZE;
+            long size = Files.size(Paths.get(path));
+            assertEquals(0, size % TestUtils.TEST_PAGE_SIZE);
+            assertTrue(size >= used);
+            assertTrue(size <= Math.max(2 * used, used + options.getFileGrowthSize()), size + " bytes for " + used);
+        }
+        long used = (db.getDal().getFreelist().getMaxPage() + 1) * TestUtils.TEST_PAGE_SIZE;
+        assertTrue(Files.size(Paths.get(path)) > used);
+        db.close();
+
+        // Closing gives back what wasn't used
+        db = DB.open(path, options);
+        assertEquals((db.getDal().getFreelist().getMaxPage() + 1) * TestUtils.TEST_PAGE_SIZE, Files.size(Paths.get(path)));
+        Transaction transaction = db.readTransaction();
+        assertEquals(10000, transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().findAll().size());
+        transaction.commit();
+        db.close();
+
+        options.setFileGrowthSize(TestUtils.TEST_PAGE_SIZE - 1);
+        assertThrows(IllegalArgumentException.class, () -> DB.open(TestUtils.getTempFileName(), options));
+    }
+
+    @Test
+    void testDBCompactShrinksFile() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        compactShrinksFile(new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE));
+    }
+
+    @Test
+    void testDBCompactShrinksFileWithWriteAheadLog() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setWriteAheadLog(true);
+        options.setWalCheckpointFrames(0);
+        compactShrinksFile(options);
+    }
+
+    private static void compactShrinksFile(Options options) throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, options);
+        byte[] otherName = "other".getBytes();
+        byte[] longValue = new byte[3 * TestUtils.TEST_PAGE_SIZE];
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 20000; i++) {
+            collection.put(TestUtils.documentKey(i), ("v" + i).getBytes());
+        }
+        transaction.commit();
+        // Written after the first collection, so its pages are at the end of the file
+        transaction = db.writeTransaction();
+        Collection other = transaction.createCollection(otherName);
+        for (int i = 0; i < 5000; i++) {
+            other.put(TestUtils.documentKey(i), i % 500 == 0 ? longValue : ("o" + i).getBytes());
+        }
+        transaction.commit();
+
+        transaction = db.writeTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < 20000; i++) {
+            if (i % 50 != 0) {
+                assertTrue(collection.remove(TestUtils.documentKey(i)));
+            }
+        }
+        transaction.commit();
+        long maxPage = db.getDal().getFreelist().getMaxPage();
+
+        // A reader of the version before the compaction keeps reading it, and the pages it may read stay in the file
+        Transaction reader = db.readTransaction();
+        Compactor.Result pinned = db.compact(16);
+        assertTrue(pinned.getMovedPages() > 0);
+        assertTrue(pinned.getTransactions() > 1, pinned.toString());
+        assertEquals(5000, reader.getCollection(otherName).get().findAll().size());
+        reader.commit();
+        assertEquals((maxPage - db.getDal().getFreelist().getMaxPage()) * TestUtils.TEST_PAGE_SIZE, pinned.getReclaimedBytes());
+
+        // Once the reader is gone the pages the nodes were moved from can be taken off the file
+        Compactor.Result result = db.compact(16);
+        long compactedMaxPage = db.getDal().getFreelist().getMaxPage();
+        assertTrue(compactedMaxPage < maxPage / 2, compactedMaxPage + " of " + maxPage + " pages");
+        assertEquals((maxPage - compactedMaxPage) * TestUtils.TEST_PAGE_SIZE, pinned.getReclaimedBytes() + result.getReclaimedBytes());
+        // Pages moved off the end that were still in the log aren't written there again
+        if (db.getDal().getWal() != null) {
+            db.getDal().getWal().checkpoint();
+        }
+        assertEquals((compactedMaxPage + 1) * TestUtils.TEST_PAGE_SIZE, Files.size(Paths.get(path)));
+        db.close();
+        assertTrue(Files.size(Paths.get(path)) < (maxPage + 1) * TestUtils.TEST_PAGE_SIZE);
+
+        db = DB.open(path, options);
+        assertEquals(compactedMaxPage, db.getDal().getFreelist().getMaxPage());
+        transaction = db.readTransaction();
+        assertEquals(400, transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().findAll().size());
+        other = transaction.getCollection(otherName).get();
+        for (int i = 0; i < 5000; i++) {
+            assertArrayEquals(i % 500 == 0 ? longValue : ("o" + i).getBytes(), other.find(TestUtils.documentKey(i)).get().value());
+        }
+        List<Long> pages = new ArrayList<>();
+        collectPages(transaction, transaction.getRootCollection().getRoot(), pages);
+        collectPages(transaction, transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().getRoot(), pages);
+        collectPages(transaction, other.getRoot(), pages);
+        for (long page : pages) {
+            assertTrue(page <= compactedMaxPage);
+            assertFalse(db.getDal().getFreelist().isFree(page));
+        }
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void testDBCompactReadsBatchPerTransaction() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = DB.open(TestUtils.getTempFileName(), new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE));
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < 20000; i++) {
+            collection.put(TestUtils.documentKey(i), ("v" + i).getBytes());
+        }
+        transaction.commit();
+        db.compact(16);
+        transaction = db.readTransaction();
+        List<Long> pages = new ArrayList<>();
+        collectPages(transaction, transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().getRoot(), pages);
+        transaction.commit();
+        long txId = db.getDal().getMeta().getTxId();
+
+        // The file is compact already, so nothing moves, but the walk still takes a transaction for every batch of
+        // pages it reads
+        Compactor.Result result = db.compact(16);
+        assertEquals(0, result.getMovedPages());
+        assertTrue(result.getTransactions() > pages.size() / 16, result + ", " + pages.size() + " pages");
+        // Only the transactions that shrink the file commit
+        assertEquals(txId + 2, db.getDal().getMeta().getTxId());
+        db.close();
+    }
+
+    private static boolean reclaimQueueIsEmpty(DB db) throws IOException {
+        Transaction transaction = db.writeTransaction();
+        try {
+            long root = db.getDal().getMeta().getReclaimRoot();
+            return root == 0 || db.getDal().getNode(root).getItems().isEmpty();
+        } finally {
+            transaction.rollback();
+        }
+    }
+
+    private static int releasedPageCount(DB db) {
+        // The freelist belongs to whoever holds the write lock
+        Transaction transaction = db.writeTransaction();
+        int released = db.getDal().getFreelist().getReleasedPageCount();
+        transaction.rollback();
+        return released;
+    }
+
+    @Test
+    void testDBDroppedCollectionPagesAreReclaimed() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setReclaimBatchPages(0);
+        DB db = DB.open(path, options);
+        byte[] longValue = new byte[2 * TestUtils.TEST_PAGE_SIZE];
+        byte[] temporaryName = "temporary".getBytes();
+        TestUtils.loadDocuments(db, temporaryName, 1, TestUtils.documents(10000, i -> i % 100 == 0 ? longValue : ("v" + i).getBytes()));
+        long maxPage = db.getDal().getFreelist().getMaxPage();
+
+        // Changes made before the drop in the same transaction are reclaimed as well
+        Transaction transaction = db.writeTransaction();
+        Collection temporary = transaction.getCollection(temporaryName).get();
+        for (int i = 10000; i < 11000; i++) {
+            temporary.put(TestUtils.documentKey(i), ("v" + i).getBytes());
+        }
+        assertTrue(transaction.deleteCollection(temporaryName));
+        assertFalse(transaction.deleteCollection(temporaryName));
+        transaction.commit();
+        assertTrue(db.getDal().getMeta().getReclaimRoot() != 0);
+        int released = releasedPageCount(db);
+        db.close();
+
+        // The queue outlives the database being closed
+        db = DB.open(path, options);
+        assertTrue(db.reclaim() > maxPage / 2);
+        assertTrue(releasedPageCount(db) > released + maxPage / 2);
+        assertEquals(0, db.reclaim());
+        transaction = db.readTransaction();
+        assertTrue(transaction.getCollection(temporaryName).isEmpty());
+        transaction.commit();
+
+        // The released pages are taken before the file grows
+        long reclaimedMaxPage = db.getDal().getFreelist().getMaxPage();
+        TestUtils.loadDocuments(db, temporaryName, 1, TestUtils.documents(10000, i -> i % 100 == 0 ? longValue : ("v" + i).getBytes()));
+        assertTrue(db.getDal().getFreelist().getMaxPage() < reclaimedMaxPage + maxPage / 10,
+                db.getDal().getFreelist().getMaxPage() + " pages after " + reclaimedMaxPage);
+        transaction = db.readTransaction();
+        assertArrayEquals(longValue, transaction.getCollection(temporaryName).get().find(TestUtils.documentKey(0)).get().value());
+        transaction.commit();
+        db.close();
+    }
+
+    @Test
+    void testDBReclaimsDroppedCollectionsInBackground() throws Exception {
+        String path = TestUtils.getTempFileName();
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setReclaimBatchPages(8);
+        DB db = DB.open(path, options);
+        byte[] longValue = new byte[2 * TestUtils.TEST_PAGE_SIZE];
+        long maxPage = 0;
+        for (int round = 0; round < 5; round++) {
+            byte[] name = ("temporary" + round).getBytes();
+            TestUtils.loadDocuments(db, name, 1, TestUtils.documents(5000, i -> i % 100 == 0 ? longValue : ("v" + i).getBytes()));
+            Transaction transaction = db.writeTransaction();
+            transaction.deleteCollection(name);
+            transaction.commit();
+            if (round == 0) {
+                maxPage = db.getDal().getFreelist().getMaxPage();
+            }
+
+            // Once the reclaimer is done only the root collection, the queue and the freelist are left
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (!reclaimQueueIsEmpty(db) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(db.getDal().getFreelist().getMaxPage() - releasedPageCount(db) <= 16);
+        }
+        // Every collection took the pages of the one before it
+        assertTrue(db.getDal().getFreelist().getMaxPage() < maxPage + maxPage / 10,
+                db.getDal().getFreelist().getMaxPage() + " pages after " + maxPage);
+        assertEquals(0, db.reclaim());
+        db.close();
+    }
 }
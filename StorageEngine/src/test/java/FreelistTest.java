@@ -1,9 +1,13 @@
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 import org.jafar.*;
 import org.junit.jupiter.api.Test;
@@ -35,4 +39,63 @@ class FreelistTest {
 
         assertEquals(expected, actual);
     }
+
+    @Test
+    void testFreelistWideSerialize() {
+        Freelist freelist = new Freelist();
+        freelist.setMaxPage(100000);
+        freelist.setReleasedPages(Arrays.asList(70000L, 2L, 99999L));
+        ByteBuffer data = ByteBuffer.allocate(TestUtils.TEST_PAGE_SIZE);
+        freelist.serialize(data, true);
+
+        Freelist actual = new Freelist();
+        actual.deserialize(data, true);
+
+        assertEquals(freelist, actual);
+    }
+
+    @Test
+    void testFreelistExtents() {
+        Freelist freelist = new Freelist();
+        freelist.setMaxPage(10);
+        freelist.setReleasedPages(Arrays.asList(9L, 3L, 4L, 5L, 8L));
+
+        // Runs are taken lowest first, from the first run that's long enough
+        assertEquals(3, freelist.getNextPages(2));
+        assertEquals(5, freelist.getNextPage());
+        assertEquals(8, freelist.getNextPages(2));
+        assertEquals(11, freelist.getNextPages(2));
+        assertEquals(12, freelist.getMaxPage());
+
+        // A run at the end of the file is extended past it
+        freelist.releasePage(11);
+        freelist.releasePage(12);
+        assertEquals(11, freelist.getNextPages(3));
+        assertEquals(13, freelist.getMaxPage());
+        assertEquals(List.of(), freelist.getReleasedPages());
+    }
+
+    @Test
+    void testFreelistChangedPages() {
+        Freelist freelist = new Freelist();
+        for (int i = 0; i < 5; i++) {
+            freelist.getNextPage();
+        }
+        freelist.clearChangedPages();
+
+        freelist.releasePage(2);
+        freelist.deferRelease(1, 4);
+        assertEquals(BitSet.valueOf(new long[] {0b10100}), freelist.getChangedPages());
+        assertTrue(freelist.isFree(4));
+        assertEquals(List.of(2L), freelist.getReleasedPages());
+
+        // Pending pages are persisted as free already, releasing them changes nothing
+        freelist.clearChangedPages();
+        freelist.releasePending(1);
+        assertTrue(freelist.getChangedPages().isEmpty());
+        assertEquals(List.of(2L, 4L), freelist.getReleasedPages());
+
+        assertEquals(2, freelist.getNextPage());
+        assertEquals(BitSet.valueOf(new long[] {0b100}), freelist.getChangedPages());
+    }
 }
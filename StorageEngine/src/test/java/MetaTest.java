@@ -8,6 +8,7 @@ import java.nio.file.Paths;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class MetaTest {
 
@@ -38,4 +39,73 @@ public class MetaTest {
 
         assertEquals(expected, actual);
     }
+
+    @Test
+    void testMetaDeserializeLegacy() throws IOException, Constants.NotJafarDBFile {
+        byte[] metaData = Files.readAllBytes(Paths.get(TestUtils.getExpectedResultFileName("TestMetaDeserializeLegacy")));
+
+        Meta actual = new Meta();
+        actual.deserialize(metaData);
+        assertEquals(Meta.FormatVersionLegacy, actual.getFormatVersion());
+        assertEquals(0, actual.getTxId());
+        assertEquals(3, actual.getRoot());
+        assertEquals(4, actual.getFreelistPage());
+
+        // It's written back the way it was read
+        byte[] written = new byte[metaData.length];
+        actual.serialize(written);
+        assertArrayEquals(metaData, written);
+    }
+
+    @Test
+    void testMetaFormatVersion() throws Constants.NotJafarDBFile {
+        Meta meta = new Meta(4);
+        meta.setRoot(3);
+        meta.setTxId(7);
+        meta.setFormatVersion(Meta.FormatVersionPrefixCompression);
+
+        byte[] data = new byte[Meta.MetaSize];
+        meta.serialize(data);
+        Meta actual = new Meta();
+        actual.deserialize(data);
+
+        assertEquals(meta, actual);
+        assertEquals(Meta.FormatVersionPrefixCompression, actual.getFormatVersion());
+    }
+
+    @Test
+    void testMetaWideFormat() throws Constants.NotJafarDBFile {
+        Meta meta = new Meta(4);
+        meta.setRoot(3);
+        meta.setTxId(7);
+        meta.setFormatVersion(Meta.FormatVersionWide);
+        meta.setFlags(Meta.PrefixCompressionFlag);
+
+        byte[] data = new byte[Meta.MetaSize];
+        meta.serialize(data);
+        Meta actual = new Meta();
+        actual.deserialize(data);
+
+        assertEquals(meta, actual);
+        assertTrue(actual.isWide());
+        assertTrue(actual.isPrefixCompression());
+    }
+
+    @Test
+    void testMetaReclaimQueue() throws Constants.NotJafarDBFile {
+        Meta meta = new Meta(4);
+        meta.setRoot(3);
+        meta.setTxId(7);
+        meta.setFormatVersion(Meta.FormatVersionReclaimQueue);
+        meta.setReclaimRoot(9);
+
+        byte[] data = new byte[Meta.MetaSize];
+        meta.serialize(data);
+        Meta actual = new Meta();
+        actual.deserialize(data);
+
+        assertEquals(meta, actual);
+        assertTrue(actual.isReclaimQueue());
+        assertEquals(9, actual.getReclaimRoot());
+    }
 }
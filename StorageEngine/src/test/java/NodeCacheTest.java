@@ -0,0 +1,180 @@
+import org.jafar.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NodeCacheTest {
+    Node createNode(long pageNum) {
+        Node node = new Node(TestUtils.createItems(Long.toString(pageNum)), new ArrayList<>());
+        node.setPageNum(pageNum);
+        return node;
+    }
+
+    @Test
+    void getCountsHitsAndMisses() {
+        NodeCache cache = new NodeCache(4);
+        cache.put(createNode(1));
+
+        assertNotNull(cache.get(1));
+        assertNull(cache.get(2));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void evictsPagesThatWereNotReferenced() {
+        NodeCache cache = new NodeCache(3);
+        cache.put(createNode(1));
+        cache.put(createNode(2));
+        cache.put(createNode(3));
+
+        // Page 1 and 3 get a second chance, page 2 is the first one the hand finds unreferenced
+        cache.get(1);
+        cache.get(3);
+        cache.put(createNode(4));
+
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get(1));
+        assertNull(cache.get(2));
+        assertNotNull(cache.get(3));
+        assertNotNull(cache.get(4));
+    }
+
+    @Test
+    void invalidateFreesTheSlot() {
+        NodeCache cache = new NodeCache(2);
+        cache.put(createNode(1));
+        cache.put(createNode(2));
+        cache.get(1);
+        cache.get(2);
+
+        cache.invalidate(1);
+        cache.put(createNode(3));
+
+        assertNull(cache.get(1));
+        assertNotNull(cache.get(2));
+        assertNotNull(cache.get(3));
+    }
+
+    @Test
+    void disabledCacheKeepsNothing() {
+        NodeCache cache = new NodeCache(0);
+        cache.put(createNode(1));
+
+        assertNull(cache.get(1));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void concurrentLookupsStayWithinCapacity() throws InterruptedException {
+        NodeCache cache = new NodeCache(16);
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 1; i <= 64; i++) {
+            nodes.add(createNode(i));
+        }
+
+        List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 20000; i++) {
+                        Node node = nodes.get((i * 7 + seed) % nodes.size());
+                        Node cached = cache.get(node.getPageNum());
+                        if (cached == null) {
+                            cache.put(node);
+                        } else {
+                            assertSame(node, cached);
+                        }
+                        if (i % 100 == seed) {
+                            cache.invalidate(node.getPageNum());
+                        }
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(List.of(), failures);
+        assertTrue(cache.size() <= 16, cache.size() + " nodes");
+        assertEquals(4 * 20000, cache.getHits() + cache.getMisses());
+    }
+
+    @Test
+    void dalReturnsCopiesOfCachedNodes() throws IOException, Constants.NotJafarDBFile {
+        DB db = TestUtils.createTestDB();
+        DAL dal = db.getDal();
+        Node written = dal.writeNode(new Node(TestUtils.createItems("0", "1"), new ArrayList<>()));
+
+        Node first = dal.getNode(written.getPageNum());
+        first.getItems().remove(0);
+        Node second = dal.getNode(written.getPageNum());
+
+        assertEquals(2, second.getItems().size());
+        assertEquals(1, dal.getNodeCache().getHits());
+    }
+
+    @Test
+    void commitInvalidatesWrittenPages() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        byte[] value = TestUtils.createItem("0");
+        collection.put(value, value);
+        transaction.commit();
+
+        // Warm up the cache with the collection's root
+        transaction = db.readTransaction();
+        assertTrue(transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().find(value).isPresent());
+        transaction.commit();
+
+        transaction = db.writeTransaction();
+        collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        collection.remove(value);
+        transaction.commit();
+
+        transaction = db.readTransaction();
+        long hits = db.getDal().getNodeCache().getHits();
+        Optional<Item> item = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().find(value);
+        transaction.commit();
+
+        assertTrue(item.isEmpty());
+        // The commit copied both the collection root and the root collection to new pages, neither was cached
+        assertEquals(hits, db.getDal().getNodeCache().getHits());
+    }
+
+    @Test
+    void rootCollectionIsServedFromCache() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        transaction.commit();
+
+        List<Long> misses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            transaction = db.readTransaction();
+            transaction.getCollection(TestUtils.TEST_COLLECTION_NAME);
+            transaction.commit();
+            misses.add(db.getDal().getNodeCache().getMisses());
+        }
+
+        assertEquals(misses.get(0), misses.get(2));
+    }
+}
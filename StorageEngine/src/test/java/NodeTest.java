@@ -2,8 +2,13 @@ import org.jafar.*;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class NodeTest {
     @Test
@@ -167,4 +172,56 @@ public class NodeTest {
 
         TestUtils.areTreesEqual(expectedCollectionAfterRemoval, collection);
     }
+
+    @Test
+    void findKeyInNode() {
+        Node node = new Node(TestUtils.createItems("1", "3", "5", "7"), new ArrayList<>());
+
+        assertEquals(0, node.findKeyInNode(TestUtils.createItem("1")));
+        assertEquals(3, node.findKeyInNode(TestUtils.createItem("7")));
+        // Keys that aren't in the node encode where they should be
+        assertEquals(-1, node.findKeyInNode(TestUtils.createItem("0")));
+        assertEquals(-3, node.findKeyInNode(TestUtils.createItem("4")));
+        assertEquals(-5, node.findKeyInNode(TestUtils.createItem("8")));
+        assertEquals(-1, new Node().findKeyInNode(TestUtils.createItem("0")));
+    }
+
+    @Test
+    void serializePrefixCompressed() {
+        List<Item> items = new ArrayList<>();
+        for (String key : new String[]{"prefix-1", "prefix-22", "prefix-3"}) {
+            items.add(new Item(key.getBytes(), ("value of " + key).getBytes()));
+        }
+        Node node = new Node(items, new ArrayList<>(Arrays.asList(1L, 2L, 3L, 4L)));
+        assertEquals(7, node.commonPrefixLength());
+
+        ByteBuffer compressed = ByteBuffer.allocate(TestUtils.TEST_PAGE_SIZE);
+        node.serialize(compressed, true, false);
+
+        Node actual = new Node();
+        actual.deserialize(compressed);
+        assertEquals(node, actual);
+        // The prefix is stored once instead of with every key
+        assertEquals(node.nodeSize(0, false) - node.nodeSize(7, false), 3 * 7 - 1 - 7);
+    }
+
+    @Test
+    void serializeWide() {
+        // More than 64 KB of items, their offsets don't fit in 2 bytes
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            byte[] value = new byte[250];
+            Arrays.fill(value, (byte) i);
+            items.add(new Item(String.format("key-%04d", i).getBytes(), value));
+        }
+        Node node = new Node(items, new ArrayList<>());
+        assertTrue(node.nodeSize(0, true) > 64 * 1024);
+
+        ByteBuffer wide = ByteBuffer.allocate(256 * 1024);
+        node.serialize(wide, false, true);
+
+        Node actual = new Node();
+        actual.deserialize(wide);
+        assertEquals(node, actual);
+    }
 }
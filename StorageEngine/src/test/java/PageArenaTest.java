@@ -0,0 +1,122 @@
+import org.jafar.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PageArenaTest {
+    @Test
+    void releasedPagesAreReused() {
+        PageArena arena = new PageArena(TestUtils.TEST_PAGE_SIZE, 2);
+
+        Page first = arena.acquire();
+        first.release();
+        Page second = arena.acquire();
+
+        assertSame(first, second);
+        assertTrue(second.getData().isDirect());
+        assertEquals(TestUtils.TEST_PAGE_SIZE, second.getData().limit());
+    }
+
+    @Test
+    void acquiredPagesAreZeroed() {
+        PageArena arena = new PageArena(TestUtils.TEST_PAGE_SIZE, 1);
+
+        try (Page page = arena.acquire()) {
+            page.getData().put(10, (byte) 7);
+        }
+
+        try (Page page = arena.acquire()) {
+            assertEquals(0, page.getData().get(10));
+        }
+    }
+
+    @Test
+    void pagesForReadsAreNotZeroed() {
+        PageArena arena = new PageArena(TestUtils.TEST_PAGE_SIZE, 1);
+
+        try (Page page = arena.acquire()) {
+            page.getData().put(10, (byte) 7);
+        }
+
+        // A read fills the whole page, so zeroing it first would be wasted
+        try (Page page = arena.acquireForRead()) {
+            assertEquals(7, page.getData().get(10));
+            assertEquals(0, page.getData().position());
+            assertEquals(TestUtils.TEST_PAGE_SIZE, page.getData().limit());
+        }
+    }
+
+    @Test
+    void readPastEndOfFileIsZeroed() throws IOException {
+        PageArena arena = new PageArena(TestUtils.TEST_PAGE_SIZE, 1);
+        FileChannelPageFile file = new FileChannelPageFile(TestUtils.getTempFileName(), TestUtils.TEST_PAGE_SIZE);
+        byte[] data = new byte[TestUtils.TEST_PAGE_SIZE];
+        data[10] = 7;
+        file.writePage(0, ByteBuffer.wrap(data));
+
+        file.readPage(0, arena).release();
+        try (Page page = file.readPage(1, arena)) {
+            assertEquals(0, page.getData().get(10));
+        }
+        file.close();
+    }
+
+    @Test
+    void exhaustedArenaFallsBackToHeapPages() {
+        PageArena arena = new PageArena(TestUtils.TEST_PAGE_SIZE, 1);
+
+        Page first = arena.acquire();
+        Page second = arena.acquire();
+
+        assertFalse(second.getData().isDirect());
+        assertEquals(ByteOrder.LITTLE_ENDIAN, second.getData().order());
+        assertEquals(1, arena.getOverflows());
+
+        second.release();
+        first.release();
+        assertEquals(1, arena.available());
+    }
+
+    @Test
+    void dalReleasesEveryPage() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setNodeCacheSize(0);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < TestUtils.MOCK_NUMBER_OF_ELEMENTS; i++) {
+            byte[] value = TestUtils.createItem(Integer.toString(i));
+            collection.put(value, value);
+        }
+        transaction.commit();
+
+        transaction = db.readTransaction();
+        collection.setTransaction(transaction);
+        assertEquals(TestUtils.MOCK_NUMBER_OF_ELEMENTS, collection.findAll().size());
+        transaction.commit();
+
+        PageArena arena = db.getDal().getArena();
+        assertEquals(arena.getCapacity(), arena.available());
+        assertEquals(0, arena.getOverflows());
+    }
+
+    @Test
+    void nodeRoundTripsThroughArenaPage() {
+        PageArena arena = new PageArena(TestUtils.TEST_PAGE_SIZE, 1);
+        Node expected = new Node(TestUtils.createItems("0", "1", "2"), new ArrayList<>());
+
+        Node actual = new Node();
+        try (Page page = arena.acquire()) {
+            expected.serialize(page.getData());
+            actual.deserialize(page.getData());
+        }
+
+        TestUtils.areNodesEqual(expected, actual);
+    }
+}
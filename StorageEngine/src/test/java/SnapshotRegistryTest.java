@@ -0,0 +1,93 @@
+import org.jafar.*;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotRegistryTest {
+    @Test
+    void oldestIsCurrentWithoutReaders() {
+        SnapshotRegistry registry = new SnapshotRegistry(4);
+        assertEquals(7, registry.oldest(7));
+
+        int slot = registry.acquire(3);
+        registry.release(slot);
+        assertEquals(7, registry.oldest(7));
+    }
+
+    @Test
+    void oldestReaderHoldsBackReclamation() {
+        SnapshotRegistry registry = new SnapshotRegistry(4);
+        int first = registry.acquire(3);
+        int second = registry.acquire(5);
+        assertNotEquals(first, second);
+        assertEquals(3, registry.oldest(7));
+
+        registry.update(first, 6);
+        assertEquals(5, registry.oldest(7));
+
+        registry.release(second);
+        assertEquals(6, registry.oldest(7));
+    }
+
+    @Test
+    void fullRegistryWaitsForAFreeSlot() throws InterruptedException {
+        SnapshotRegistry registry = new SnapshotRegistry(1);
+        int slot = registry.acquire(1);
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        AtomicInteger waitingSlot = new AtomicInteger(-1);
+        Thread waiting = new Thread(() -> {
+            waitingSlot.set(registry.acquire(2));
+            acquired.countDown();
+        });
+        waiting.start();
+
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        registry.release(slot);
+        assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        assertEquals(slot, waitingSlot.get());
+        assertEquals(2, registry.oldest(7));
+    }
+
+    @Test
+    void fullRegistryGivesUpAfterTheTimeout() {
+        SnapshotRegistry registry = new SnapshotRegistry(1, 50);
+        int slot = registry.acquire(1);
+
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> registry.acquire(2));
+        assertTrue(e.getMessage().contains("read transaction slots"), e.getMessage());
+        assertEquals(1, registry.oldest(7));
+        registry.release(slot);
+        assertEquals(slot, registry.acquire(2));
+    }
+
+    @Test
+    void readTransactionPinsTheCommittedVersion() throws Exception {
+        // The reclaimer would commit a version of its own after the drop
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setReclaimBatchPages(0);
+        DB db = DB.open(TestUtils.getTempFileName(), options);
+        Transaction transaction = db.writeTransaction();
+        transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        transaction.commit();
+
+        Transaction reader = db.readTransaction();
+        assertEquals(db.getDal().getMeta().getTxId(), reader.getTxId());
+
+        transaction = db.writeTransaction();
+        transaction.deleteCollection(TestUtils.TEST_COLLECTION_NAME);
+        transaction.commit();
+
+        Transaction newReader = db.readTransaction();
+        assertEquals(reader.getTxId() + 1, newReader.getTxId());
+        assertTrue(reader.getCollection(TestUtils.TEST_COLLECTION_NAME).isPresent());
+        assertTrue(newReader.getCollection(TestUtils.TEST_COLLECTION_NAME).isEmpty());
+        newReader.commit();
+        reader.commit();
+        db.close();
+    }
+}
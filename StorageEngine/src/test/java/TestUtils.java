@@ -5,6 +5,7 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntFunction;
 import java.util.stream.Collectors;
 import java.util.UUID;
 
@@ -103,4 +104,62 @@ public class TestUtils {
                 .map(keyBuf -> new Item(keyBuf, keyBuf))
                 .collect(Collectors.toList());
     }
+
+    /**
+     * Puts documents in a collection, or removes them, in one of the write transactions of
+     * {@link #loadDocuments(DB, byte[], int, DocumentWriter)}.
+     */
+    public interface DocumentWriter {
+        void write(Collection collection, int transaction) throws IOException, Constants.WriteInsideReadTransactionException;
+    }
+
+    public static byte[] documentKey(int i) {
+        return String.format("4f1c2a9e-7d3b-4c55-8e21-%012d", i).getBytes();
+    }
+
+    public static byte[] document(int i, int length) {
+        byte[] document = new byte[length];
+        for (int j = 0; j < length; j++) {
+            document[j] = (byte) (i + j);
+        }
+        return document;
+    }
+
+    /**
+     * Returns a writer that puts the given number of documents under {@link #documentKey(int)}.
+     */
+    public static DocumentWriter documents(int count, IntFunction<byte[]> value) {
+        return (collection, transaction) -> {
+            for (int i = 0; i < count; i++) {
+                collection.put(documentKey(i), value.apply(i));
+            }
+        };
+    }
+
+    /**
+     * Creates the collection and has the writer fill it in the given number of write transactions, the first one
+     * creates it.
+     */
+    public static void loadDocuments(DB db, byte[] name, int transactions, DocumentWriter writer) throws IOException, Constants.WriteInsideReadTransactionException {
+        for (int i = 0; i < transactions; i++) {
+            Transaction transaction = db.writeTransaction();
+            Collection collection = i == 0 ? transaction.createCollection(name) : transaction.getCollection(name).get();
+            writer.write(collection, i);
+            transaction.commit();
+        }
+    }
+
+    /**
+     * Opens the database, loads the test collection and closes it again.
+     *
+     * @return how many pages the database uses
+     */
+    public static long loadDocuments(String path, Options options, int transactions, DocumentWriter writer) throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
+        DB db = DB.open(path, options);
+        loadDocuments(db, TEST_COLLECTION_NAME, transactions, writer);
+        Freelist freelist = db.getDal().getFreelist();
+        long pages = freelist.getMaxPage() - freelist.getReleasedPageCount();
+        db.close();
+        return pages;
+    }
 }
\ No newline at end of file
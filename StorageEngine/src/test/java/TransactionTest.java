@@ -4,12 +4,15 @@ import org.junit.jupiter.api.Test;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 public class TransactionTest {
+    private static final int MOCK_KEYS = 40;
 
     @Test
     void testTransactionCreateCollection() throws IOException, Constants.NotJafarDBFile, Constants.WriteInsideReadTransactionException {
@@ -57,71 +60,91 @@ public class TransactionTest {
     @Test
     void testTransactionOpenReadAndWriteSimultaneously() throws IOException, Constants.NotJafarDBFile, InterruptedException {
         DB db = TestUtils.createTestDB();
-        CountDownLatch latch1 = new CountDownLatch(1);
-        CountDownLatch latch2 = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch read = new CountDownLatch(1);
 
-        // Assuming that acquiring a read lock is synchronous, so we initiate the first read transaction.
         Transaction transaction1 = db.readTransaction();
 
-        // Start a write transaction in a separate thread.
+        // The writer doesn't wait for the open read transaction.
         Thread t1 = new Thread(() -> {
             Transaction transaction2 = db.writeTransaction();
-
-            // Start another read transaction in yet another thread.
-            Thread t2 = new Thread(() -> {
-                Transaction transaction3 = db.readTransaction();
-
-                Optional<Collection> collection3 = null;
-                try {
-                    collection3 = transaction3.getCollection(TestUtils.TEST_COLLECTION_NAME);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
-
-                assertArrayEquals(TestUtils.TEST_COLLECTION_NAME, collection3.get().getName());
-                try {
-                    transaction3.commit();
-                } catch (Exception e) {
-                    fail("Unexpected error: " + e.getMessage());
-                }
-
-                latch2.countDown();
-            });
-            t2.start();
-
             try {
-                Collection collection = transaction2.createCollection(TestUtils.TEST_COLLECTION_NAME);
+                transaction2.createCollection(TestUtils.TEST_COLLECTION_NAME);
             } catch (Exception e) {
                 fail("Unexpected error: " + e.getMessage());
             }
+            written.countDown();
 
+            // Commit only once a read transaction started in the middle of the write is done.
             try {
+                assertTrue(read.await(10, TimeUnit.SECONDS));
                 transaction2.commit();
             } catch (Exception e) {
                 fail("Unexpected error: " + e.getMessage());
             }
-
-            latch1.countDown();
         });
         t1.start();
 
-        Optional<Collection> collection1 = null;
-        try {
-            collection1 = transaction1.getCollection(TestUtils.TEST_COLLECTION_NAME);
-        } catch (Exception e) {
-            fail("Unexpected error: " + e.getMessage());
+        // A read transaction started while the write is in progress neither waits for it nor sees it.
+        assertTrue(written.await(10, TimeUnit.SECONDS));
+        Transaction transaction3 = db.readTransaction();
+        assertTrue(transaction3.getCollection(TestUtils.TEST_COLLECTION_NAME).isEmpty());
+        transaction3.commit();
+        read.countDown();
+        t1.join();
+
+        // The read transaction opened before the commit keeps seeing the version it started from.
+        assertTrue(transaction1.getCollection(TestUtils.TEST_COLLECTION_NAME).isEmpty());
+        transaction1.commit();
+
+        Transaction transaction4 = db.readTransaction();
+        Optional<Collection> collection4 = transaction4.getCollection(TestUtils.TEST_COLLECTION_NAME);
+        assertArrayEquals(TestUtils.TEST_COLLECTION_NAME, collection4.get().getName());
+        transaction4.commit();
+    }
+
+    @Test
+    void testTransactionReadKeepsSnapshotPages() throws Exception {
+        DB db = TestUtils.createTestDB();
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        for (int i = 0; i < MOCK_KEYS; i++) {
+            byte[] value = TestUtils.createItem("key" + i);
+            collection.put(value, value);
         }
+        transaction.commit();
 
-        assertTrue(collection1.isEmpty());
+        Transaction reader = db.readTransaction();
+        Collection snapshot = reader.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
 
-        try {
-            transaction1.commit();
-        } catch (Exception e) {
-            fail("Unexpected error: " + e.getMessage());
+        // Rewrite every key a few times, the pages the reader is on must not be reused meanwhile
+        for (int round = 0; round < 3; round++) {
+            transaction = db.writeTransaction();
+            collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+            for (int i = 0; i < MOCK_KEYS; i++) {
+                byte[] key = TestUtils.createItem("key" + i);
+                collection.put(key, TestUtils.createItem("v" + round));
+            }
+            transaction.commit();
+        }
+        assertFalse(db.getDal().getFreelist().getPendingPages().isEmpty());
+
+        List<Item> items = snapshot.findAll();
+        assertEquals(MOCK_KEYS, items.size());
+        for (Item item : items) {
+            assertArrayEquals(item.key(), item.value());
         }
+        reader.commit();
+
+        // With the reader gone the next commit releases the old pages
+        transaction = db.writeTransaction();
+        transaction.commit();
+        assertTrue(db.getDal().getFreelist().getPendingPages().isEmpty());
 
-        latch1.await();
-        latch2.await();
+        reader = db.readTransaction();
+        byte[] key = TestUtils.createItem("key0");
+        assertArrayEquals(TestUtils.createItem("v2"), reader.getCollection(TestUtils.TEST_COLLECTION_NAME).get().find(key).get().value());
+        reader.commit();
     }
 
     @Test
@@ -140,14 +163,18 @@ public class TransactionTest {
         collection = transaction.createCollection(collection);
         transaction.commit();
 
-        assertEquals(transaction.getDb().getDal().getFreelist().getReleasedPages().size(), 0);
+        // The pages the commit replaced are free again, the rollback has to give back the page the split took
+        Freelist freelist = db.getDal().getFreelist();
+        List<Long> releasedPages = new ArrayList<>(freelist.getReleasedPages());
+        long maxPage = freelist.getMaxPage();
 
         Transaction transaction2 = db.writeTransaction();
         collection = transaction2.getCollection(collection.getName()).get();
         byte[] val = TestUtils.createItem("9");
         collection.put(val, val);
         transaction2.rollback();
-        assertEquals(transaction2.getDb().getDal().getFreelist().getReleasedPages().size(), 1);
+        assertEquals(releasedPages.size() + freelist.getMaxPage() - maxPage, freelist.getReleasedPages().size());
+        assertTrue(freelist.getReleasedPages().containsAll(releasedPages));
 
         Transaction transaction3 = db.readTransaction();
         collection = transaction3.getCollection(collection.getName()).get();
@@ -156,6 +183,6 @@ public class TransactionTest {
         assertTrue(item.isEmpty());
         transaction3.commit();
 
-        assertEquals(transaction2.getDb().getDal().getFreelist().getReleasedPages().size(), 1);
+        assertEquals(releasedPages.size() + freelist.getMaxPage() - maxPage, freelist.getReleasedPages().size());
     }
 }
\ No newline at end of file
@@ -0,0 +1,340 @@
+import org.jafar.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+    static Options createWalOptions(int checkpointFrames) {
+        Options options = new Options(TestUtils.TEST_PAGE_SIZE, TestUtils.TEST_MIN_PERCENTAGE, TestUtils.TEST_MAX_PERCENTAGE);
+        options.setWriteAheadLog(true);
+        options.setWalCheckpointFrames(checkpointFrames);
+        return options;
+    }
+
+    static byte[] key(int i) {
+        return String.format("key-%06d", i).getBytes();
+    }
+
+    static Collection putAndCommit(DB db, Collection collection, byte[] key) throws IOException, Constants.WriteInsideReadTransactionException {
+        Transaction transaction = db.writeTransaction();
+        collection.setTransaction(transaction);
+        collection.put(key, key);
+        transaction.commit();
+        return collection;
+    }
+
+    static Collection createCollection(DB db) throws IOException, Constants.WriteInsideReadTransactionException {
+        Transaction transaction = db.writeTransaction();
+        Collection collection = transaction.createCollection(TestUtils.TEST_COLLECTION_NAME);
+        transaction.commit();
+        return collection;
+    }
+
+    static Optional<Item> find(DB db, byte[] key) throws IOException {
+        Transaction transaction = db.readTransaction();
+        Optional<Item> item = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().find(key);
+        transaction.commit();
+        return item;
+    }
+
+    @Test
+    void commitsAreReadFromTheLogUntilCheckpointed() throws Exception {
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, createWalOptions(0));
+        Collection collection = createCollection(db);
+        putAndCommit(db, collection, key(1));
+
+        WriteAheadLog wal = db.getDal().getWal();
+        assertTrue(wal.getFrameCount() > 0);
+        assertTrue(find(db, key(1)).isPresent());
+
+        assertTrue(wal.checkpoint());
+        assertEquals(0, wal.getFrameCount());
+        assertEquals(0, new File(WriteAheadLog.logPath(path)).length());
+        assertTrue(find(db, key(1)).isPresent());
+    }
+
+    @Test
+    void backgroundCheckpointerTruncatesTheLog() throws Exception {
+        DB db = DB.open(TestUtils.getTempFileName(), createWalOptions(8));
+        Collection collection = createCollection(db);
+        for (int i = 0; i < 20; i++) {
+            putAndCommit(db, collection, key(i));
+        }
+
+        WriteAheadLog wal = db.getDal().getWal();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (wal.getCheckpointCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(wal.getCheckpointCount() > 0);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(find(db, key(i)).isPresent());
+        }
+    }
+
+    @Test
+    void failedAppendFailsTheCommitAndLaterOnes() throws Exception {
+        DB db = DB.open(TestUtils.getTempFileName(), createWalOptions(0));
+        Collection collection = createCollection(db);
+        WriteAheadLog wal = db.getDal().getWal();
+        wal.close();
+
+        assertThrows(ClosedChannelException.class, () -> putAndCommit(db, collection, key(1)));
+        // The frames the commit did append must never get a commit frame
+        IOException failure = assertThrows(IOException.class, wal::commit);
+        assertInstanceOf(ClosedChannelException.class, failure.getCause());
+    }
+
+    @Test
+    void failedBackgroundCheckpointFailsLaterCommits() throws Exception {
+        PageFile failing = new PageFile() {
+            @Override
+            public Page readPage(long pageNum, PageArena arena) throws IOException {
+                throw new IOException("unreadable");
+            }
+
+            @Override
+            public void writePage(long pageNum, ByteBuffer data) throws IOException {
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void sync() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        WriteAheadLog wal = new WriteAheadLog(WriteAheadLog.logPath(TestUtils.getTempFileName()), failing,
+                TestUtils.TEST_PAGE_SIZE, 2);
+        ByteBuffer page = ByteBuffer.allocateDirect(TestUtils.TEST_PAGE_SIZE);
+
+        IOException failure = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        for (long pageNum = 1; failure == null && System.currentTimeMillis() < deadline; pageNum++) {
+            try {
+                wal.append(pageNum, page);
+                wal.commit();
+                Thread.sleep(10);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        assertNotNull(failure);
+        assertEquals("disk full", failure.getCause().getMessage());
+        assertEquals(0, wal.getCheckpointCount());
+        assertThrows(IOException.class, wal::close);
+    }
+
+    @Test
+    void recoveryReplaysCommittedTransactions() throws Exception {
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, createWalOptions(0));
+        Collection collection = createCollection(db);
+        putAndCommit(db, collection, key(1));
+        putAndCommit(db, collection, key(2));
+        // The process dies without closing the DB, so the data file never saw these pages
+
+        DB recovered = DB.open(path, createWalOptions(0));
+        assertTrue(find(recovered, key(1)).isPresent());
+        assertTrue(find(recovered, key(2)).isPresent());
+        assertEquals(0, recovered.getDal().getWal().getFrameCount());
+    }
+
+    @Test
+    void recoveryIgnoresTransactionWithoutCommitFrame() throws Exception {
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, createWalOptions(0));
+        Collection collection = createCollection(db);
+        putAndCommit(db, collection, key(1));
+
+        // Dies half way through a commit: the changed root made it to the log, the commit frame didn't
+        Transaction transaction = db.writeTransaction();
+        collection.setTransaction(transaction);
+        Node root = transaction.getNode(collection.getRoot());
+        root.addItem(new Item(key(2), key(2)), 1);
+        db.getDal().writeNode(root);
+
+        DB recovered = DB.open(path, createWalOptions(0));
+        assertTrue(find(recovered, key(1)).isPresent());
+        assertTrue(find(recovered, key(2)).isEmpty());
+    }
+
+    @Test
+    void recoveryStopsAtTornFrame() throws Exception {
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, createWalOptions(0));
+        Collection collection = createCollection(db);
+        putAndCommit(db, collection, key(1));
+        long committedLength = new File(WriteAheadLog.logPath(path)).length();
+        putAndCommit(db, collection, key(2));
+
+        // Cut the second commit in the middle of one of its page frames
+        try (RandomAccessFile log = new RandomAccessFile(WriteAheadLog.logPath(path), "rw")) {
+            log.setLength(committedLength + WriteAheadLog.FrameHeaderSize + TestUtils.TEST_PAGE_SIZE / 2);
+        }
+
+        DB recovered = DB.open(path, createWalOptions(0));
+        assertTrue(find(recovered, key(1)).isPresent());
+        assertTrue(find(recovered, key(2)).isEmpty());
+    }
+
+    @Test
+    void recoveryStopsAtFramesOfAnEarlierLog() throws Exception {
+        String path = TestUtils.getTempFileName();
+        Path logPath = Paths.get(WriteAheadLog.logPath(path));
+        DB db = DB.open(path, createWalOptions(0));
+        Collection collection = createCollection(db);
+        WriteAheadLog wal = db.getDal().getWal();
+        assertTrue(wal.checkpoint());
+        putAndCommit(db, collection, key(1));
+        long firstCommitLength = Files.size(logPath);
+        putAndCommit(db, collection, key(2));
+        byte[] earlierLog = Files.readAllBytes(logPath);
+
+        assertTrue(wal.checkpoint());
+        putAndCommit(db, collection, key(3));
+        long length = Files.size(logPath);
+        // The commit took as many frames as the first one of the earlier log, so the rest of that log starts right
+        // after it, as if the truncation never made it to the disk before the process died
+        assertEquals(firstCommitLength, length);
+        try (FileChannel log = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            log.write(ByteBuffer.wrap(earlierLog, (int) length, earlierLog.length - (int) length), length);
+        }
+
+        DB recovered = DB.open(path, createWalOptions(0));
+        assertTrue(find(recovered, key(1)).isPresent());
+        assertTrue(find(recovered, key(2)).isPresent());
+        assertTrue(find(recovered, key(3)).isPresent());
+    }
+
+    @Test
+    void abandonedLogKeepsCommittedFrames() throws Exception {
+        String path = TestUtils.getTempFileName();
+        DB db = DB.open(path, createWalOptions(0));
+        Collection collection = createCollection(db);
+        putAndCommit(db, collection, key(1));
+
+        Transaction transaction = db.writeTransaction();
+        collection.setTransaction(transaction);
+        Node root = transaction.getNode(collection.getRoot());
+        root.addItem(new Item(key(2), key(2)), 1);
+        db.getDal().writeNode(root);
+        db.getDal().getWal().abandon();
+
+        DB recovered = DB.open(path, createWalOptions(0));
+        assertTrue(find(recovered, key(1)).isPresent());
+        assertTrue(find(recovered, key(2)).isEmpty());
+    }
+
+    @Test
+    void recoveryReplaysLogOfEarlierBuild() throws Exception {
+        // Written by a build whose frames had no salt, by a process that died after committing keys 0 to 99
+        String path = TestUtils.getTempFileName();
+        Files.copy(Paths.get(TestUtils.getExpectedResultFileName("TestRecoverLegacyLog")), Paths.get(path));
+        Files.copy(Paths.get(TestUtils.getExpectedResultFileName("TestRecoverLegacyLog-wal")), Paths.get(WriteAheadLog.logPath(path)));
+
+        DB db = DB.open(path, createWalOptions(0));
+        assertEquals(0, db.getDal().getWal().getFrameCount());
+        Transaction transaction = db.readTransaction();
+        Collection collection = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get();
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(("value-" + i).getBytes(), collection.find(String.format("key-%04d", i).getBytes()).get().value());
+        }
+        transaction.commit();
+        putAndCommit(db, collection, key(1));
+        db.close();
+
+        db = DB.open(path, createWalOptions(0));
+        assertTrue(find(db, key(1)).isPresent());
+        assertTrue(find(db, "key-0099".getBytes()).isPresent());
+        db.close();
+    }
+
+    @Test
+    void recoveryAfterProcessIsKilledMidCommit() throws Exception {
+        String path = TestUtils.getTempFileName();
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process writer = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), Writer.class.getName(), path)
+                .redirectErrorStream(true)
+                .start();
+
+        int lastCommitted = -1;
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(writer.getInputStream()))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                lastCommitted = Integer.parseInt(line.trim());
+                if (lastCommitted >= 2 * Writer.WINDOW) {
+                    break;
+                }
+            }
+            writer.destroyForcibly();
+            writer.waitFor();
+        }
+        assertTrue(lastCommitted >= 2 * Writer.WINDOW, "writer stopped after " + lastCommitted + " commits");
+
+        DB recovered = DB.open(path, Writer.createOptions());
+        Transaction transaction = recovered.readTransaction();
+        List<Item> items = transaction.getCollection(TestUtils.TEST_COLLECTION_NAME).get().findAll();
+        transaction.commit();
+
+        // Every commit inserts one key and removes the one that fell out of the window, so a commit that was only
+        // partly recovered would leave a gap or an extra key behind.
+        assertEquals(Writer.WINDOW, items.size());
+        int first = Integer.parseInt(new String(items.get(0).key()).substring(4));
+        assertTrue(first + Writer.WINDOW - 1 >= lastCommitted, "lost commits up to " + lastCommitted);
+        for (int i = 0; i < items.size(); i++) {
+            assertArrayEquals(key(first + i), items.get(i).key());
+            assertArrayEquals(key(first + i), items.get(i).value());
+        }
+    }
+
+    /**
+     * Keeps committing until it gets killed. Every transaction adds the next key and removes the one that is WINDOW
+     * keys behind it, and the key's index is printed once the commit returned.
+     */
+    public static class Writer {
+        static final int WINDOW = 100;
+
+        static Options createOptions() {
+            Options options = createWalOptions(16);
+            // Big enough pages for the whole window to stay in the root
+            options.setPageSize(16384);
+            return options;
+        }
+
+        public static void main(String[] args) throws Exception {
+            DB db = DB.open(args[0], createOptions());
+            Collection collection = createCollection(db);
+            for (int i = 0; ; i++) {
+                Transaction transaction = db.writeTransaction();
+                collection.setTransaction(transaction);
+                collection.put(key(i), key(i));
+                if (i >= WINDOW) {
+                    collection.remove(key(i - WINDOW));
+                }
+                transaction.commit();
+                System.out.println(i);
+                System.out.flush();
+            }
+        }
+    }
+}